@@ -40,9 +40,9 @@ class App : Application(), DefaultLifecycleObserver, CoroutineScope by Coroutine
             .lifecycle
             .addObserver(this)
 
-        // Register battery receiver if needed
+        // Start battery sync if needed
         if (storage.isBatterySyncActivated()) {
-            BatteryStatusBroadcastReceiver.subscribeToUpdates(this)
+            BatteryStatusBroadcastReceiver.startBatterySync(this, storage)
         }
 
         if (storage.isForegroundServiceEnabled()) {
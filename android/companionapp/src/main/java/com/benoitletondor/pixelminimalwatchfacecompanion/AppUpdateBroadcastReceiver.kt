@@ -34,7 +34,7 @@ class AppUpdateBroadcastReceiver : BroadcastReceiver() {
         }
 
         if (storage.isBatterySyncActivated()) {
-            BatteryStatusBroadcastReceiver.subscribeToUpdates(context)
+            BatteryStatusBroadcastReceiver.startBatterySync(context, storage)
         }
 
         if (storage.isForegroundServiceEnabled()) {
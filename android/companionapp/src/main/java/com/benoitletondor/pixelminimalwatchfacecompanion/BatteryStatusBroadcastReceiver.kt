@@ -23,52 +23,53 @@ import android.content.IntentFilter
 import android.os.BatteryManager
 import android.util.Log
 import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
-import com.benoitletondor.pixelminimalwatchfacecompanion.sync.Sync
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.BatterySyncCostMeter
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.BatteryStatusPublisher
 import dagger.hilt.android.AndroidEntryPoint
-import kotlinx.coroutines.CancellationException
-import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.launch
 import java.lang.IllegalArgumentException
 import javax.inject.Inject
 
 @AndroidEntryPoint
 class BatteryStatusBroadcastReceiver : BroadcastReceiver() {
-    @Inject lateinit var sync: Sync
+    @Inject lateinit var batteryStatusPublisher: BatteryStatusPublisher
     @Inject lateinit var storage: Storage
-
-    private var lastBatteryLevelPercentSent: Int? = null
+    @Inject lateinit var batterySyncCostMeter: BatterySyncCostMeter
 
     override fun onReceive(context: Context, intent: Intent) {
         if (!storage.isBatterySyncActivated()) {
             return
         }
 
+        batterySyncCostMeter.measure(BatterySyncCostMeter.Mode.RECEIVER) {
+            onBatteryIntentReceived(context, intent)
+        }
+    }
+
+    private fun onBatteryIntentReceived(context: Context, intent: Intent) {
         try {
-            val maybeBatteryPercentage = when(intent.action) {
-                ACTION_BATTERY_CHANGED -> intent.getBatteryLevelPercent()
-                ACTION_POWER_CONNECTED, ACTION_POWER_DISCONNECTED, ACTION_BATTERY_LOW, ACTION_BATTERY_OKAY -> context.registerReceiver(null, IntentFilter(ACTION_BATTERY_CHANGED))?.getBatteryLevelPercent()
+            val batteryStatusIntent = when(intent.action) {
+                ACTION_BATTERY_CHANGED -> intent
+                ACTION_POWER_CONNECTED, ACTION_POWER_DISCONNECTED, ACTION_BATTERY_LOW, ACTION_BATTERY_OKAY -> context.registerReceiver(null, IntentFilter(ACTION_BATTERY_CHANGED))
                 else -> null
             }
 
-            if (maybeBatteryPercentage == null) {
+            if (batteryStatusIntent == null) {
                 Log.w("BatteryStatusBroadcastReceiver", "Unable to extract battery level")
                 return
             }
 
-            GlobalScope.launch {
-                try {
-                    if (maybeBatteryPercentage != lastBatteryLevelPercentSent) {
-                        sync.sendBatteryStatus(maybeBatteryPercentage)
-                        lastBatteryLevelPercentSent = maybeBatteryPercentage
-                    }
-                } catch (t: Throwable) {
-                    if (t is CancellationException) {
-                        throw t
-                    }
-
-                    Log.e("BatteryStatusBroadcastReceiver", "Error sending battery level", t)
-                }
+            // The sticky intent may not reflect the plug state yet when receiving power connection changes
+            val isCharging = when(intent.action) {
+                ACTION_POWER_CONNECTED -> true
+                ACTION_POWER_DISCONNECTED -> false
+                else -> batteryStatusIntent.isCharging()
             }
+
+            batteryStatusPublisher.onBatteryStatusChanged(
+                percent = batteryStatusIntent.getBatteryLevelPercent(),
+                isCharging = isCharging,
+                force = intent.action != ACTION_BATTERY_CHANGED,
+            )
         } catch (t: Throwable) {
             Log.e("BatteryStatusBroadcastReceiver", "Error computing battery level", t)
         }
@@ -78,7 +79,25 @@ class BatteryStatusBroadcastReceiver : BroadcastReceiver() {
         private var isSubscribed = false
         private val receiver = BatteryStatusBroadcastReceiver()
 
-        fun subscribeToUpdates(context: Context) {
+        /**
+         * Starts listening to battery changes with the receiver, or with scheduled jobs in low-power mode.
+         */
+        fun startBatterySync(context: Context, storage: Storage) {
+            if (storage.isLowPowerBatterySyncEnabled()) {
+                unsubscribeFromUpdates(context)
+                LowPowerBatterySyncJobService.schedule(context)
+            } else {
+                LowPowerBatterySyncJobService.cancel(context)
+                subscribeToUpdates(context)
+            }
+        }
+
+        fun stopBatterySync(context: Context) {
+            unsubscribeFromUpdates(context)
+            LowPowerBatterySyncJobService.cancel(context)
+        }
+
+        private fun subscribeToUpdates(context: Context) {
             if (!isSubscribed) {
                 unsubscribeFromUpdates(context)
 
@@ -95,7 +114,7 @@ class BatteryStatusBroadcastReceiver : BroadcastReceiver() {
             isSubscribed = true
         }
 
-        fun unsubscribeFromUpdates(context: Context) {
+        private fun unsubscribeFromUpdates(context: Context) {
             try {
                 context.applicationContext.unregisterReceiver(receiver)
             } catch (e: IllegalArgumentException) {
@@ -105,16 +124,20 @@ class BatteryStatusBroadcastReceiver : BroadcastReceiver() {
             isSubscribed = false
         }
 
-        fun getCurrentBatteryLevel(context: Context): Int {
+        fun publishCurrentBatteryStatus(context: Context, batteryStatusPublisher: BatteryStatusPublisher) {
             val batteryStatus: Intent = context.registerReceiver(null, IntentFilter(ACTION_BATTERY_CHANGED))
                 ?: throw RuntimeException("Unable to get battery status, null intent")
 
-            return batteryStatus.getBatteryLevelPercent()
+            batteryStatusPublisher.onBatteryStatusChanged(
+                percent = batteryStatus.getBatteryLevelPercent(),
+                isCharging = batteryStatus.isCharging(),
+                force = true,
+            )
         }
     }
 }
 
-private fun Intent.getBatteryLevelPercent(): Int {
+internal fun Intent.getBatteryLevelPercent(): Int {
     val level: Int = getIntExtra(BatteryManager.EXTRA_LEVEL, -1)
     val scale: Int = getIntExtra(BatteryManager.EXTRA_SCALE, -1)
     if (level == -1 || scale == -1) {
@@ -122,4 +145,6 @@ private fun Intent.getBatteryLevelPercent(): Int {
     }
 
     return (level * 100 / scale.toFloat()).toInt()
-}
\ No newline at end of file
+}
+
+internal fun Intent.isCharging(): Boolean = getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0
@@ -31,7 +31,7 @@ class BootCompleteBroadcastReceiver : BroadcastReceiver() {
     override fun onReceive(context: Context, intent: Intent) {
         if (intent.action == Intent.ACTION_BOOT_COMPLETED || intent.action == "android.intent.action.QUICKBOOT_POWERON") {
             if (storage.isBatterySyncActivated()) {
-                BatteryStatusBroadcastReceiver.subscribeToUpdates(context)
+                BatteryStatusBroadcastReceiver.startBatterySync(context, storage)
             }
 
             if (storage.isForegroundServiceEnabled()) {
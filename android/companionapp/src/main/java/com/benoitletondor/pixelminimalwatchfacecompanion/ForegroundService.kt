@@ -99,7 +99,7 @@ class ForegroundService : Service() {
         startForeground(183729, notification)
 
         if (storage.isBatterySyncActivated()) {
-            BatteryStatusBroadcastReceiver.subscribeToUpdates(this)
+            BatteryStatusBroadcastReceiver.startBatterySync(this, storage)
         }
     }
 
@@ -0,0 +1,188 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion
+
+import android.app.job.JobInfo
+import android.app.job.JobParameters
+import android.app.job.JobScheduler
+import android.app.job.JobService
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.BatterySyncCostMeter
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.SyncOutbox
+import dagger.hilt.android.AndroidEntryPoint
+import kotlinx.coroutines.*
+import javax.inject.Inject
+import kotlin.math.sign
+
+/**
+ * Low-power phone battery sync: instead of keeping the app alive to receive every battery change,
+ * the system wakes it up periodically and when the phone gets plugged, and the status is sent to
+ * the watch only when it crossed a [THRESHOLD_STEP_PERCENT] step or the charging state changed.
+ */
+@AndroidEntryPoint
+class LowPowerBatterySyncJobService : JobService(), CoroutineScope by CoroutineScope(SupervisorJob() + Dispatchers.IO) {
+    @Inject lateinit var storage: Storage
+    @Inject lateinit var syncOutbox: SyncOutbox
+    @Inject lateinit var batterySyncCostMeter: BatterySyncCostMeter
+
+    private val runningJobs = mutableMapOf<Int, Job>()
+
+    override fun onDestroy() {
+        cancel()
+        super.onDestroy()
+    }
+
+    override fun onStartJob(params: JobParameters): Boolean {
+        if (!storage.isBatterySyncActivated() || !storage.isLowPowerBatterySyncEnabled()) {
+            if (DEBUG_LOGS) Log.d(TAG, "onStartJob, low-power battery sync disabled, cancelling jobs")
+            LowPowerBatterySyncJobService.cancel(this)
+            return false
+        }
+
+        return batterySyncCostMeter.measure(BatterySyncCostMeter.Mode.LOW_POWER_JOB) {
+            startJob(params)
+        }
+    }
+
+    private fun startJob(params: JobParameters): Boolean {
+        val batteryStatusIntent = registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+        if (batteryStatusIntent == null) {
+            Log.w(TAG, "Unable to extract battery level")
+            return false
+        }
+
+        val (percent, isCharging) = try {
+            batteryStatusIntent.getBatteryLevelPercent() to batteryStatusIntent.isCharging()
+        } catch (e: Exception) {
+            Log.e(TAG, "Error computing battery level", e)
+            return false
+        }
+
+        // The plug job is one-shot and would run right away while charging, it's scheduled again once unplugged
+        if (!isCharging) {
+            scheduleChargingJob(this)
+        }
+
+        val lastSentStatus = storage.getLastBatteryStatusSent()
+        if (!shouldSendLowPowerBatteryStatus(percent, isCharging, lastSentStatus, isChargingJob = params.jobId == CHARGING_JOB_ID)) {
+            if (DEBUG_LOGS) Log.d(TAG, "onStartJob, ignoring $percent%, last sent: ${lastSentStatus?.percent}%")
+            return false
+        }
+
+        synchronized(runningJobs) {
+            runningJobs[params.jobId]?.cancel()
+            runningJobs[params.jobId] = launch {
+                try {
+                    val delivered = syncOutbox.send(SyncOutbox.Entry.Battery(percent, isCharging))
+                    val direction = if (lastSentStatus == null || lastSentStatus.isCharging != isCharging) {
+                        0
+                    } else {
+                        (percent - lastSentStatus.percent).sign
+                    }
+                    storage.setLastBatteryStatusSent(Storage.BatteryStatusSent(percent, isCharging, System.currentTimeMillis(), direction))
+
+                    if (DEBUG_LOGS) Log.d(TAG, "onStartJob, sent $percent% (charging: $isCharging, delivered: $delivered)")
+                } catch (e: Exception) {
+                    if (e is CancellationException) throw e
+
+                    Log.e(TAG, "Error while sending battery status", e)
+                }
+
+                synchronized(runningJobs) {
+                    runningJobs.remove(params.jobId)
+                }
+                jobFinished(params, false)
+            }
+        }
+
+        return true
+    }
+
+    override fun onStopJob(params: JobParameters): Boolean {
+        synchronized(runningJobs) {
+            runningJobs.remove(params.jobId)?.cancel()
+        }
+
+        return true
+    }
+
+    companion object {
+        private const val TAG = "LowPowerBatterySyncJob"
+        private val DEBUG_LOGS = BuildConfig.DEBUG
+
+        private const val PERIODIC_JOB_ID = 6301
+        private const val CHARGING_JOB_ID = 6302
+        private const val PERIODIC_JOB_INTERVAL_MS = 1000 * 60 * 15L
+        private const val PERIODIC_JOB_FLEX_MS = 1000 * 60 * 5L
+
+        fun schedule(context: Context) {
+            val jobScheduler = context.getSystemService(JobScheduler::class.java)
+            if (jobScheduler.getPendingJob(PERIODIC_JOB_ID) == null) {
+                val jobInfo = JobInfo.Builder(PERIODIC_JOB_ID, ComponentName(context, LowPowerBatterySyncJobService::class.java))
+                    .setPeriodic(PERIODIC_JOB_INTERVAL_MS, PERIODIC_JOB_FLEX_MS)
+                    .setPersisted(true)
+                    .build()
+
+                jobScheduler.schedule(jobInfo)
+            }
+
+            scheduleChargingJob(context)
+        }
+
+        fun cancel(context: Context) {
+            val jobScheduler = context.getSystemService(JobScheduler::class.java)
+            jobScheduler.cancel(PERIODIC_JOB_ID)
+            jobScheduler.cancel(CHARGING_JOB_ID)
+        }
+
+        private fun scheduleChargingJob(context: Context) {
+            val jobScheduler = context.getSystemService(JobScheduler::class.java)
+            if (jobScheduler.getPendingJob(CHARGING_JOB_ID) != null) {
+                return
+            }
+
+            val jobInfo = JobInfo.Builder(CHARGING_JOB_ID, ComponentName(context, LowPowerBatterySyncJobService::class.java))
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build()
+
+            jobScheduler.schedule(jobInfo)
+        }
+    }
+}
+
+private const val THRESHOLD_STEP_PERCENT = 5
+
+/**
+ * The plug job always sends the status, other runs only when the charging state changed or the level
+ * crossed a [THRESHOLD_STEP_PERCENT] step since [lastSentStatus].
+ */
+internal fun shouldSendLowPowerBatteryStatus(
+    percent: Int,
+    isCharging: Boolean,
+    lastSentStatus: Storage.BatteryStatusSent?,
+    isChargingJob: Boolean,
+): Boolean {
+    return isChargingJob ||
+        lastSentStatus == null ||
+        lastSentStatus.isCharging != isCharging ||
+        lastSentStatus.percent / THRESHOLD_STEP_PERCENT != percent / THRESHOLD_STEP_PERCENT
+}
@@ -21,6 +21,9 @@ import android.content.Intent
 import android.graphics.drawable.Icon
 import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import android.provider.Settings
 import android.service.notification.NotificationListenerService
 import android.service.notification.StatusBarNotification
@@ -28,6 +31,7 @@ import android.util.Log
 import androidx.activity.result.contract.ActivityResultContract
 import androidx.annotation.RequiresApi
 import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.NotificationIconIds
 import com.benoitletondor.pixelminimalwatchfacecompanion.sync.Sync
 import dagger.hilt.android.AndroidEntryPoint
 import kotlinx.coroutines.*
@@ -44,8 +48,20 @@ class NotificationsListener : NotificationListenerService() {
     private var currentSyncActivatedWatchingJob: Job? = null
     private var currentAppsDisabledWatchingJob: Job? = null
     private var currentSyncJob: Job? = null
-    private var latestSentNotificationsData: Sync.NotificationsData? = null
-    private var filteredApps: Set<String> = emptySet()
+    @Volatile private var latestSentNotificationsData: Sync.NotificationsData? = null
+    @Volatile private var attachAllIconsOnNextSync = false
+    @Volatile private var filteredApps: Set<String> = emptySet()
+
+    // Active notifications by StatusBarNotification.key, only accessed from the main thread, and only
+    // maintained while sync is activated
+    private val notificationsIndex = HashMap<String, IndexedNotification>()
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val notificationIconIds by lazy { NotificationIconIds(this) }
+    private val syncRunnable = Runnable { syncNotifications() }
+    // Debouncing state, only accessed from the main thread
+    private var pendingSyncSinceTimestamp: Long? = null
+    private var scansAvoidedCount = 0L
+    private var syncMessagesSavedCount = 0L
 
     override fun onListenerConnected() {
         super.onListenerConnected()
@@ -61,8 +77,14 @@ class NotificationsListener : NotificationListenerService() {
                 .collect { syncActivated ->
                     latestSentNotificationsData = null
 
-                    if (syncActivated) {
-                        onChange()
+                    mainHandler.post {
+                        // The index isn't maintained while sync is deactivated
+                        if (syncActivated) {
+                            rebuildNotificationsIndex()
+                            onChange()
+                        } else {
+                            notificationsIndex.clear()
+                        }
                     }
                 }
         }
@@ -72,7 +94,7 @@ class NotificationsListener : NotificationListenerService() {
             storage.watchNotificationSyncDisabledPackages()
                 .collect {
                     filteredApps = it
-                    onChange()
+                    postChange()
                 }
         }
     }
@@ -80,18 +102,43 @@ class NotificationsListener : NotificationListenerService() {
     override fun onNotificationPosted(sbn: StatusBarNotification?) {
         super.onNotificationPosted(sbn)
         if (DEBUG_LOGS) Log.d(TAG, "onNotificationPosted: $sbn")
+
+        if (!storage.isNotificationsSyncActivated()) {
+            return
+        }
+
+        if (sbn != null) {
+            notificationsIndex[sbn.key] = sbn.toIndexedNotification()
+        }
+        scansAvoidedCount++
         onChange()
     }
 
     override fun onNotificationRemoved(sbn: StatusBarNotification?) {
         super.onNotificationRemoved(sbn)
         if (DEBUG_LOGS) Log.d(TAG, "onNotificationRemoved: $sbn")
+
+        if (!storage.isNotificationsSyncActivated()) {
+            return
+        }
+
+        if (sbn != null) {
+            notificationsIndex.remove(sbn.key)
+        }
+        scansAvoidedCount++
         onChange()
     }
 
     override fun onNotificationRankingUpdate(rankingMap: RankingMap?) {
         super.onNotificationRankingUpdate(rankingMap)
         if (DEBUG_LOGS) Log.d(TAG, "onNotificationRankingUpdate: $rankingMap")
+
+        if (!storage.isNotificationsSyncActivated()) {
+            return
+        }
+
+        // Only the order may have changed, which is read from the current ranking at sync time
+        scansAvoidedCount++
         onChange()
     }
 
@@ -99,6 +146,7 @@ class NotificationsListener : NotificationListenerService() {
         if (DEBUG_LOGS) Log.d(TAG, "onDestroy")
 
         scope.cancel()
+        mainHandler.removeCallbacks(syncRunnable)
         currentSyncJob = null
         currentSyncActivatedWatchingJob = null
         currentInstance = null
@@ -106,51 +154,107 @@ class NotificationsListener : NotificationListenerService() {
         super.onDestroy()
     }
 
+    /**
+     * Schedules a sync of the derived icon list once no change happened for [SYNC_DEBOUNCE_MS],
+     * or at most [SYNC_MAX_DEBOUNCE_MS] after the first pending change. Must be called from the main
+     * thread, use [postChange] from other threads.
+     */
     private fun onChange() {
         if (!storage.isNotificationsSyncActivated()) {
             if (DEBUG_LOGS) Log.d(TAG, "onChange: isNotificationsSyncActivated is false, skipping")
             return
         }
 
+        val now = SystemClock.uptimeMillis()
+        val pendingSyncSinceTimestamp = pendingSyncSinceTimestamp
+        if (pendingSyncSinceTimestamp != null) {
+            syncMessagesSavedCount++
+
+            if (now - pendingSyncSinceTimestamp >= SYNC_MAX_DEBOUNCE_MS - SYNC_DEBOUNCE_MS) {
+                // Keep the already scheduled sync so that a continuous burst still syncs regularly
+                return
+            }
+        } else {
+            this.pendingSyncSinceTimestamp = now
+        }
+
+        mainHandler.removeCallbacks(syncRunnable)
+        mainHandler.postDelayed(syncRunnable, SYNC_DEBOUNCE_MS)
+    }
+
+    private fun postChange() {
+        mainHandler.post { onChange() }
+    }
+
+    private fun rebuildNotificationsIndex() {
+        notificationsIndex.clear()
+
+        try {
+            activeNotifications?.forEach { notification ->
+                notificationsIndex[notification.key] = notification.toIndexedNotification()
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to read active notifications", e)
+        }
+
+        if (DEBUG_LOGS) Log.d(TAG, "rebuildNotificationsIndex: ${notificationsIndex.size} notifications")
+    }
+
+    private fun syncNotifications() {
+        pendingSyncSinceTimestamp = null
+
+        if (!storage.isNotificationsSyncActivated()) {
+            if (DEBUG_LOGS) Log.d(TAG, "syncNotifications: isNotificationsSyncActivated is false, skipping")
+            return
+        }
+
+        val groupIds = mutableSetOf<String?>()
+        val icons = mutableListOf<Icon>()
+        for (notification in getOrderedIndexedNotifications()) {
+            if (notification.isOngoing) {
+                continue
+            }
+
+            if (notification.packageName in filteredApps) {
+                continue
+            }
+
+            if (notification.groupKey.isNullOrBlank() || notification.groupKey !in groupIds) {
+                icons.add(notification.icon)
+
+                groupIds.add(notification.groupKey)
+            }
+        }
+
+        val attachAllIcons = attachAllIconsOnNextSync
+
         currentSyncJob?.cancel()
         currentSyncJob = scope.launch {
-            if (DEBUG_LOGS) Log.d(TAG, "onChange: currentSyncJob start")
-
             try {
-                val groupIds = mutableSetOf<String>()
+                // Ids are computed off the main thread as they require rendering the icons, once per icon object
                 val iconIds = mutableListOf<Int>()
                 val iconIdsToIcons = mutableMapOf<Int, Icon>()
-                activeNotifications.forEach { notification ->
-                    if (notification.isOngoing) {
-                        if (DEBUG_LOGS) Log.d(TAG, "onChange: Ignoring because ongoing $notification")
-                        return@forEach
-                    }
-
-                    if (notification.packageName in filteredApps) {
-                        if (DEBUG_LOGS) Log.d(TAG, "onChange: Ignoring because filtered $notification")
-                        return@forEach
-                    }
+                for (icon in icons) {
+                    val iconId = notificationIconIds.getId(icon)
+                    iconIds.add(iconId)
+                    iconIdsToIcons[iconId] = icon
+                }
 
-                    if (notification.groupKey.isNullOrBlank() || notification.groupKey !in groupIds) {
-                        iconIds.add(notification.notification.smallIcon.id())
-                        iconIdsToIcons[notification.notification.smallIcon.id()] = notification.notification.smallIcon
+                if (DEBUG_LOGS) Log.d(TAG, "syncNotifications: iconIds: $iconIds, scans avoided: $scansAvoidedCount, sync messages saved: $syncMessagesSavedCount")
 
-                        groupIds.add(notification.groupKey)
-                    }
+                if (iconIds == latestSentNotificationsData?.iconIds) {
+                    if (DEBUG_LOGS) Log.d(TAG, "syncNotifications: ignoring as same as before")
+                    syncMessagesSavedCount++
+                    return@launch
                 }
 
-                if (DEBUG_LOGS) Log.d(TAG, "onChange: iconIds: $iconIds")
+                val data = Sync.NotificationsData(iconIds, iconIdsToIcons)
+                if (DEBUG_LOGS) Log.d(TAG, "syncNotifications: sendActiveNotifications: $data")
+                sync.sendActiveNotifications(data, attachAllIcons = attachAllIcons)
+                attachAllIconsOnNextSync = false
 
-                if (iconIds != latestSentNotificationsData?.iconIds) {
-                    val data = Sync.NotificationsData(iconIds, iconIdsToIcons)
-                    if (DEBUG_LOGS) Log.d(TAG, "onChange: sendActiveNotifications: $data")
-                    sync.sendActiveNotifications(data)
-
-                    if (DEBUG_LOGS) Log.d(TAG, "onChange: done, storing: $data")
-                    latestSentNotificationsData = data
-                } else {
-                    if (DEBUG_LOGS) Log.d(TAG, "onChange: ignoring as same as before")
-                }
+                if (DEBUG_LOGS) Log.d(TAG, "syncNotifications: done, storing: $data")
+                latestSentNotificationsData = data
             } catch (e: Exception) {
                 if (e is CancellationException) throw e
 
@@ -159,7 +263,48 @@ class NotificationsListener : NotificationListenerService() {
         }
     }
 
-    private fun Icon.id(): Int = toString().hashCode()
+    /**
+     * Indexed notifications in the system ranking order, which is what activeNotifications returns.
+     */
+    private fun getOrderedIndexedNotifications(): List<IndexedNotification> {
+        val orderedKeys = try {
+            currentRanking?.orderedKeys
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to get current ranking", e)
+            null
+        } ?: return notificationsIndex.values.toList()
+
+        val orderedNotifications = ArrayList<IndexedNotification>(notificationsIndex.size)
+        for (key in orderedKeys) {
+            notificationsIndex[key]?.let { orderedNotifications.add(it) }
+        }
+
+        // Ranking may not know about a notification yet
+        if (orderedNotifications.size < notificationsIndex.size) {
+            val orderedKeysSet = orderedKeys.toSet()
+            notificationsIndex.forEach { (key, notification) ->
+                if (key !in orderedKeysSet) {
+                    orderedNotifications.add(notification)
+                }
+            }
+        }
+
+        return orderedNotifications
+    }
+
+    private fun StatusBarNotification.toIndexedNotification() = IndexedNotification(
+        packageName = packageName,
+        groupKey = groupKey,
+        isOngoing = isOngoing,
+        icon = notification.smallIcon,
+    )
+
+    private class IndexedNotification(
+        val packageName: String,
+        val groupKey: String?,
+        val isOngoing: Boolean,
+        val icon: Icon,
+    )
 
     object NotificationsListenerPermissionResultContract : ActivityResultContract<Unit, Unit>() {
         override fun createIntent(context: Context, input: Unit): Intent = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
@@ -181,6 +326,8 @@ class NotificationsListener : NotificationListenerService() {
         private var currentInstance: NotificationsListener? = null
 
         private const val TAG = "NotificationsListener"
+        private const val SYNC_DEBOUNCE_MS = 300L
+        private const val SYNC_MAX_DEBOUNCE_MS = 1000L
         private val DEBUG_LOGS = BuildConfig.DEBUG
 
         @RequiresApi(Build.VERSION_CODES.R)
@@ -208,7 +355,17 @@ class NotificationsListener : NotificationListenerService() {
             }
 
             currentInstance?.latestSentNotificationsData = null
-            currentInstance?.onChange()
+            currentInstance?.postChange()
+        }
+
+        fun onIconsResendRequested() {
+            if (currentInstance == null) {
+                Log.e(TAG, "onIconsResendRequested called without a NotificationsListener instance")
+            }
+
+            currentInstance?.attachAllIconsOnNextSync = true
+            currentInstance?.latestSentNotificationsData = null
+            currentInstance?.postChange()
         }
     }
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ import android.util.Log
 import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig.WATCH_CAPABILITY
 import com.benoitletondor.pixelminimalwatchfacecompanion.device.Device
 import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.BatteryStatusPublisher
 import com.benoitletondor.pixelminimalwatchfacecompanion.sync.Sync
 import com.google.android.gms.wearable.CapabilityInfo
 import com.google.android.gms.wearable.MessageEvent
@@ -32,6 +33,7 @@ class WatchMessageReceiver : WearableListenerService(), CoroutineScope by Corout
     @Inject lateinit var sync: Sync
     @Inject lateinit var storage: Storage
     @Inject lateinit var device: Device
+    @Inject lateinit var batteryStatusPublisher: BatteryStatusPublisher
 
     override fun onDestroy() {
         cancel()
@@ -48,6 +50,7 @@ class WatchMessageReceiver : WearableListenerService(), CoroutineScope by Corout
             QUERY_NOTIFICATIONS_SYNC_STATUS_PATH -> sendNotificationsSyncStatus(messageEvent.data)
             QUERY_NOTIFICATIONS_ACTIVATED_SYNC_PATH -> activateNotificationsSync()
             QUERY_NOTIFICATIONS_DEACTIVATED_SYNC_PATH -> deactivateNotificationsSync()
+            QUERY_NOTIFICATIONS_RESEND_ICONS_PATH -> NotificationsListener.onIconsResendRequested()
             else -> Log.e(TAG, "Received message with unknown path: ${messageEvent.path}")
         }
     }
@@ -82,7 +85,7 @@ class WatchMessageReceiver : WearableListenerService(), CoroutineScope by Corout
 
     private fun deactivateBatterySync() {
         storage.setBatterySyncActivated(false)
-        BatteryStatusBroadcastReceiver.unsubscribeFromUpdates(this)
+        BatteryStatusBroadcastReceiver.stopBatterySync(this)
 
         storage.setForegroundServiceEnabled(false)
         device.finishForegroundService()
@@ -100,12 +103,12 @@ class WatchMessageReceiver : WearableListenerService(), CoroutineScope by Corout
 
     private fun activateBatterySync() {
         storage.setBatterySyncActivated(true)
-        BatteryStatusBroadcastReceiver.subscribeToUpdates(this)
+        BatteryStatusBroadcastReceiver.startBatterySync(this, storage)
 
         launch {
             try {
                 sync.sendBatterySyncStatus(true)
-                sync.sendBatteryStatus(BatteryStatusBroadcastReceiver.getCurrentBatteryLevel(this@WatchMessageReceiver))
+                BatteryStatusBroadcastReceiver.publishCurrentBatteryStatus(this@WatchMessageReceiver, batteryStatusPublisher)
             } catch (e: Exception) {
                 if (e is CancellationException) throw e
 
@@ -177,5 +180,6 @@ class WatchMessageReceiver : WearableListenerService(), CoroutineScope by Corout
         private const val QUERY_NOTIFICATIONS_SYNC_STATUS_PATH = "/notificationsSync/queryStatus"
         private const val QUERY_NOTIFICATIONS_ACTIVATED_SYNC_PATH = "/notificationsSync/activate"
         private const val QUERY_NOTIFICATIONS_DEACTIVATED_SYNC_PATH = "/notificationsSync/deactivate"
+        private const val QUERY_NOTIFICATIONS_RESEND_ICONS_PATH = "/notificationsSync/resendIcons"
     }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.device
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Log
+import android.util.LruCache
+import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
+import java.io.File
+
+/**
+ * App icon thumbnails by package name and size, in memory and in a small disk tier in the cache
+ * dir, so that an app icon drawable is loaded and rendered only once.
+ */
+class AppIconsCache(context: Context) {
+    private val memoryCache = object : LruCache<String, Bitmap>(MEMORY_CACHE_MAX_SIZE_BYTES) {
+        override fun sizeOf(key: String, value: Bitmap): Int = value.byteCount
+    }
+    private val directory = File(context.cacheDir, DIRECTORY_NAME)
+
+    private var hitCount = 0L
+    private var missCount = 0L
+
+    /**
+     * Returns the cached thumbnail for [packageName], or renders it with [render] and caches it.
+     */
+    fun getOrRender(packageName: String, sizePx: Int, render: () -> Bitmap?): Bitmap? {
+        val key = getKey(packageName, sizePx)
+        memoryCache.get(key)?.let { bitmap ->
+            onHit()
+            return bitmap
+        }
+
+        readFromDisk(key)?.let { bitmap ->
+            memoryCache.put(key, bitmap)
+            onHit()
+            return bitmap
+        }
+
+        val bitmap = render() ?: return null
+        synchronized(this) {
+            missCount++
+        }
+
+        memoryCache.put(key, bitmap)
+        writeToDisk(key, bitmap)
+
+        return bitmap
+    }
+
+    /**
+     * Drops every thumbnail of [packageName], to be called when the app is updated or removed.
+     */
+    @Synchronized
+    fun remove(packageName: String) {
+        val keyPrefix = getKey(packageName, sizePx = null)
+
+        memoryCache.snapshot().keys
+            .filter { it.startsWith(keyPrefix) }
+            .forEach { memoryCache.remove(it) }
+
+        directory.listFiles()
+            ?.filter { it.name.startsWith(keyPrefix) }
+            ?.forEach { it.delete() }
+    }
+
+    @Synchronized
+    private fun onHit() {
+        hitCount++
+
+        if (DEBUG_LOGS) Log.d(TAG, "hit, hits: $hitCount, misses: $missCount")
+    }
+
+    private fun readFromDisk(key: String): Bitmap? {
+        val file = getFile(key)
+        if (!file.exists()) {
+            return null
+        }
+
+        return try {
+            val bitmap = BitmapFactory.decodeFile(file.path) ?: throw IllegalStateException("Unable to decode file")
+            file.setLastModified(System.currentTimeMillis())
+            bitmap
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while reading icon $key", e)
+            file.delete()
+            null
+        }
+    }
+
+    @Synchronized
+    private fun writeToDisk(key: String, bitmap: Bitmap) {
+        try {
+            if (!directory.exists()) {
+                directory.mkdirs()
+            }
+
+            getFile(key).outputStream().use { output ->
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, output)
+            }
+            trimDiskTier()
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while writing icon $key", e)
+            getFile(key).delete()
+        }
+    }
+
+    private fun trimDiskTier() {
+        val files = directory.listFiles() ?: return
+        var totalSize = files.sumOf { it.length() }
+        if (totalSize <= DISK_CACHE_MAX_SIZE_BYTES) {
+            return
+        }
+
+        for (file in files.sortedBy { it.lastModified() }) {
+            totalSize -= file.length()
+            file.delete()
+
+            if (totalSize <= DISK_CACHE_MAX_SIZE_BYTES) {
+                return
+            }
+        }
+    }
+
+    private fun getKey(packageName: String, sizePx: Int?) = "$packageName@${sizePx ?: ""}"
+
+    private fun getFile(key: String) = File(directory, "$key.png")
+
+    companion object {
+        private const val TAG = "AppIconsCache"
+        private const val DIRECTORY_NAME = "app_icons"
+        private const val MEMORY_CACHE_MAX_SIZE_BYTES = 4 * 1024 * 1024
+        private const val DISK_CACHE_MAX_SIZE_BYTES = 2 * 1024 * 1024L
+        private val DEBUG_LOGS = BuildConfig.DEBUG
+    }
+}
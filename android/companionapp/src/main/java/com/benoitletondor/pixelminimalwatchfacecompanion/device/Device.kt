@@ -16,9 +16,10 @@
 package com.benoitletondor.pixelminimalwatchfacecompanion.device
 
 import android.content.Intent
-import android.graphics.drawable.Drawable
+import android.graphics.Bitmap
 import androidx.compose.runtime.Immutable
 import androidx.compose.runtime.Stable
+import kotlinx.coroutines.flow.Flow
 
 interface Device {
     fun isBatteryOptimizationOff(): Boolean
@@ -27,13 +28,24 @@ interface Device {
     fun isForegroundServiceStarted(): Boolean
     fun finishForegroundService()
     fun hasNotificationsListenerPermission(): Boolean
-    suspend fun listAllApps(): List<AppInfo>
+    /**
+     * Installed apps sorted by name, emitted progressively while labels load. Kept across calls
+     * and reloaded when a package is added, removed or changed.
+     */
+    fun watchAllApps(): Flow<AppsList>
+    suspend fun getAppIcon(packageName: String, sizePx: Int): Bitmap?
 
     @Stable
     @Immutable
     data class AppInfo(
         val packageName: String,
         val appName: String,
-        val icon: Drawable,
+    )
+
+    @Stable
+    @Immutable
+    data class AppsList(
+        val apps: List<AppInfo>,
+        val complete: Boolean,
     )
 }
\ No newline at end of file
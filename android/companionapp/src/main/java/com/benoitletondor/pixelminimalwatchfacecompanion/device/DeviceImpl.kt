@@ -16,19 +16,31 @@
 package com.benoitletondor.pixelminimalwatchfacecompanion.device
 
 import android.annotation.SuppressLint
+import android.content.BroadcastReceiver
 import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
+import android.graphics.Bitmap
 import android.os.Build
 import android.os.PowerManager
 import android.provider.Settings
 import android.util.Log
 import androidx.core.app.NotificationManagerCompat
+import androidx.core.graphics.drawable.toBitmap
+import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
 import com.benoitletondor.pixelminimalwatchfacecompanion.ForegroundService
 import com.benoitletondor.pixelminimalwatchfacecompanion.R
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.withContext
 import java.lang.Exception
 import javax.inject.Inject
@@ -38,6 +50,18 @@ import javax.inject.Inject
 class DeviceImpl @Inject constructor(
     @ApplicationContext private val context: Context,
 ) : Device {
+    private val appIconsCache = AppIconsCache(context)
+    @Volatile private var cachedAppsList: CachedAppsList? = null
+    private val appsListVersionFlow = MutableStateFlow(0)
+    private var packagesChangesReceiverRegistered = false
+    private val packagesChangesReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            if (DEBUG_LOGS) Log.d(TAG, "packagesChangesReceiver, ${intent.action} for ${intent.data}")
+
+            intent.data?.schemeSpecificPart?.let { appIconsCache.remove(it) }
+            appsListVersionFlow.value++
+        }
+    }
 
     private val powerManagerIntents = arrayOf(
         Intent().setComponent(ComponentName("com.miui.securitycenter", "com.miui.permcenter.autostart.AutoStartManagementActivity")),
@@ -95,28 +119,79 @@ class DeviceImpl @Inject constructor(
         }
     }
 
-    override suspend fun listAllApps(): List<Device.AppInfo> {
-        return withContext(Dispatchers.IO) {
-            val appInfos = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                context.packageManager.getInstalledApplications(PackageManager.ApplicationInfoFlags.of(0))
-            } else {
-                @Suppress("DEPRECATION")
-                context.packageManager.getInstalledApplications(0)
+    @OptIn(ExperimentalCoroutinesApi::class)
+    override fun watchAllApps(): Flow<Device.AppsList> = appsListVersionFlow.flatMapLatest { appsListVersion ->
+        flow {
+            val cachedAppsList = cachedAppsList
+            if (cachedAppsList != null && cachedAppsList.version == appsListVersion) {
+                emit(Device.AppsList(cachedAppsList.apps, complete = true))
+                return@flow
             }
 
-            return@withContext appInfos
+            registerPackagesChangesReceiverIfNeeded()
+
+            val apps = ArrayList<Device.AppInfo>()
+            getInstalledApplications()
                 .filter { it.enabled }
-                .map {
-                    Device.AppInfo(
-                        packageName = it.packageName,
-                        appName = context.packageManager.getApplicationLabel(it).toString(),
-                        icon = context.packageManager.getApplicationIcon(it),
-                    )
+                .chunked(APPS_LIST_BATCH_SIZE)
+                .forEach { applicationInfos ->
+                    for (applicationInfo in applicationInfos) {
+                        val appInfo = Device.AppInfo(
+                            packageName = applicationInfo.packageName,
+                            appName = context.packageManager.getApplicationLabel(applicationInfo).toString(),
+                        )
+
+                        val index = apps.binarySearch(appInfo, APP_NAME_COMPARATOR)
+                        apps.add(if (index < 0) { -(index + 1) } else { index }, appInfo)
+                    }
+
+                    emit(Device.AppsList(apps.toList(), complete = false))
                 }
-                .sortedBy { it.appName.lowercase() }
+
+            val loadedApps = apps.toList()
+            this@DeviceImpl.cachedAppsList = CachedAppsList(loadedApps, appsListVersion)
+            emit(Device.AppsList(loadedApps, complete = true))
+
+            if (DEBUG_LOGS) Log.d(TAG, "watchAllApps, loaded ${loadedApps.size} apps")
+        }.flowOn(Dispatchers.IO)
+    }
+
+    override suspend fun getAppIcon(packageName: String, sizePx: Int): Bitmap? = withContext(Dispatchers.IO) {
+        appIconsCache.getOrRender(packageName, sizePx) {
+            try {
+                context.packageManager.getApplicationIcon(packageName).toBitmap(sizePx, sizePx)
+            } catch (e: PackageManager.NameNotFoundException) {
+                null
+            }
         }
     }
 
+    private fun getInstalledApplications(): List<ApplicationInfo> {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.packageManager.getInstalledApplications(PackageManager.ApplicationInfoFlags.of(0))
+        } else {
+            @Suppress("DEPRECATION")
+            context.packageManager.getInstalledApplications(0)
+        }
+    }
+
+    @Synchronized
+    private fun registerPackagesChangesReceiverIfNeeded() {
+        if (packagesChangesReceiverRegistered) {
+            return
+        }
+
+        val intentFilter = IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+            addAction(Intent.ACTION_PACKAGE_CHANGED)
+            addAction(Intent.ACTION_PACKAGE_REPLACED)
+            addDataScheme("package")
+        }
+        context.registerReceiver(packagesChangesReceiver, intentFilter)
+        packagesChangesReceiverRegistered = true
+    }
+
     private fun hasActivityToResolveIgnoreBatteryOptimization(context: Context): Boolean {
         val powerIntents = getIgnoreBatteryOptimizationIntents(context)
         for (intent in powerIntents) {
@@ -144,7 +219,15 @@ class DeviceImpl @Inject constructor(
         return powerIntents
     }
 
+    private class CachedAppsList(
+        val apps: List<Device.AppInfo>,
+        val version: Int,
+    )
+
     companion object {
         private const val TAG = "Device"
+        private const val APPS_LIST_BATCH_SIZE = 30
+        private val APP_NAME_COMPARATOR = compareBy<Device.AppInfo, String>(String.CASE_INSENSITIVE_ORDER) { it.appName }
+        private val DEBUG_LOGS = BuildConfig.DEBUG
     }
 }
\ No newline at end of file
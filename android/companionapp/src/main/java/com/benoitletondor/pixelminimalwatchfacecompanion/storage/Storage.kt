@@ -33,4 +33,29 @@ interface Storage {
     fun watchNotificationSyncDisabledPackages(): Flow<Set<String>>
     fun setNotificationsSyncAppDisabled(packageName: String)
     fun removeNotificationsSyncAppDisabled(packageName: String)
+    fun getLastBatteryStatusSent(): BatteryStatusSent?
+    fun setLastBatteryStatusSent(status: BatteryStatusSent?)
+    fun getSyncOutboxPendingValues(): Map<String, String>
+    fun setSyncOutboxPendingValue(channel: String, value: String?)
+    fun isLowPowerBatterySyncEnabled(): Boolean
+    fun setLowPowerBatterySyncEnabled(enabled: Boolean)
+    fun getBatterySyncCost(mode: String): BatterySyncCost?
+    fun setBatterySyncCost(mode: String, cost: BatterySyncCost?)
+
+    /**
+     * @param direction sign of the percent change since the previously sent status, 0 for the first
+     * one or after a charging state change
+     */
+    data class BatteryStatusSent(
+        val percent: Int,
+        val isCharging: Boolean,
+        val timestamp: Long,
+        val direction: Int,
+    )
+
+    data class BatterySyncCost(
+        val events: Long,
+        val handlerCpuTimeUs: Long,
+        val sinceTimestamp: Long,
+    )
 }
\ No newline at end of file
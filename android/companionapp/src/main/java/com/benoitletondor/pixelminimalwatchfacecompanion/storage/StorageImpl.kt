@@ -30,6 +30,15 @@ private const val BATTERY_SYNC_ACTIVATED = "onboarding_finished"
 private const val FOREGROUND_SERVICE_ENABLED_KEY = "foreground_service_enabled"
 private const val NOTIFICATIONS_SYNC_ENABLED_KEY = "notifications_sync_enabled"
 private const val NOTIFICATIONS_SYNC_FILTERED_APPS_KEY = "notifications_sync_filtered_apps"
+private const val LAST_BATTERY_PERCENT_SENT_KEY = "last_battery_percent_sent"
+private const val LAST_BATTERY_CHARGING_SENT_KEY = "last_battery_charging_sent"
+private const val LAST_BATTERY_SENT_TIMESTAMP_KEY = "last_battery_sent_timestamp"
+private const val LAST_BATTERY_SENT_DIRECTION_KEY = "last_battery_sent_direction"
+private const val SYNC_OUTBOX_KEY_PREFIX = "sync_outbox_"
+private const val LOW_POWER_BATTERY_SYNC_ENABLED_KEY = "low_power_battery_sync_enabled"
+private const val BATTERY_SYNC_COST_EVENTS_KEY_PREFIX = "battery_sync_cost_events_"
+private const val BATTERY_SYNC_COST_HANDLER_CPU_TIME_KEY_PREFIX = "battery_sync_cost_handler_cpu_time_us_"
+private const val BATTERY_SYNC_COST_SINCE_KEY_PREFIX = "battery_sync_cost_events_since_"
 
 class StorageImpl @Inject constructor(@ApplicationContext context: Context) : Storage {
     private val sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_FILE_NAME, Context.MODE_PRIVATE)
@@ -110,6 +119,86 @@ class StorageImpl @Inject constructor(@ApplicationContext context: Context) : St
         }
     }
 
+    override fun getLastBatteryStatusSent(): Storage.BatteryStatusSent? {
+        if (!sharedPreferences.contains(LAST_BATTERY_PERCENT_SENT_KEY)) {
+            return null
+        }
+
+        return Storage.BatteryStatusSent(
+            percent = sharedPreferences.getInt(LAST_BATTERY_PERCENT_SENT_KEY, 0),
+            isCharging = sharedPreferences.getBoolean(LAST_BATTERY_CHARGING_SENT_KEY, false),
+            timestamp = sharedPreferences.getLong(LAST_BATTERY_SENT_TIMESTAMP_KEY, 0L),
+            direction = sharedPreferences.getInt(LAST_BATTERY_SENT_DIRECTION_KEY, 0),
+        )
+    }
+
+    override fun setLastBatteryStatusSent(status: Storage.BatteryStatusSent?) {
+        sharedPreferences.edit {
+            if (status == null) {
+                remove(LAST_BATTERY_PERCENT_SENT_KEY)
+                remove(LAST_BATTERY_CHARGING_SENT_KEY)
+                remove(LAST_BATTERY_SENT_TIMESTAMP_KEY)
+                remove(LAST_BATTERY_SENT_DIRECTION_KEY)
+            } else {
+                putInt(LAST_BATTERY_PERCENT_SENT_KEY, status.percent)
+                putBoolean(LAST_BATTERY_CHARGING_SENT_KEY, status.isCharging)
+                putLong(LAST_BATTERY_SENT_TIMESTAMP_KEY, status.timestamp)
+                putInt(LAST_BATTERY_SENT_DIRECTION_KEY, status.direction)
+            }
+        }
+    }
+
+    override fun getSyncOutboxPendingValues(): Map<String, String> {
+        return sharedPreferences.all
+            .filterKeys { it.startsWith(SYNC_OUTBOX_KEY_PREFIX) }
+            .mapNotNull { (key, value) -> (value as? String)?.let { key.removePrefix(SYNC_OUTBOX_KEY_PREFIX) to it } }
+            .toMap()
+    }
+
+    override fun setSyncOutboxPendingValue(channel: String, value: String?) {
+        sharedPreferences.edit {
+            if (value == null) {
+                remove(SYNC_OUTBOX_KEY_PREFIX + channel)
+            } else {
+                putString(SYNC_OUTBOX_KEY_PREFIX + channel, value)
+            }
+        }
+    }
+
+    override fun isLowPowerBatterySyncEnabled(): Boolean = sharedPreferences.getBoolean(LOW_POWER_BATTERY_SYNC_ENABLED_KEY, false)
+
+    override fun setLowPowerBatterySyncEnabled(enabled: Boolean) {
+        sharedPreferences.edit {
+            putBoolean(LOW_POWER_BATTERY_SYNC_ENABLED_KEY, enabled)
+        }
+    }
+
+    override fun getBatterySyncCost(mode: String): Storage.BatterySyncCost? {
+        if (!sharedPreferences.contains(BATTERY_SYNC_COST_SINCE_KEY_PREFIX + mode)) {
+            return null
+        }
+
+        return Storage.BatterySyncCost(
+            events = sharedPreferences.getLong(BATTERY_SYNC_COST_EVENTS_KEY_PREFIX + mode, 0L),
+            handlerCpuTimeUs = sharedPreferences.getLong(BATTERY_SYNC_COST_HANDLER_CPU_TIME_KEY_PREFIX + mode, 0L),
+            sinceTimestamp = sharedPreferences.getLong(BATTERY_SYNC_COST_SINCE_KEY_PREFIX + mode, 0L),
+        )
+    }
+
+    override fun setBatterySyncCost(mode: String, cost: Storage.BatterySyncCost?) {
+        sharedPreferences.edit {
+            if (cost == null) {
+                remove(BATTERY_SYNC_COST_EVENTS_KEY_PREFIX + mode)
+                remove(BATTERY_SYNC_COST_HANDLER_CPU_TIME_KEY_PREFIX + mode)
+                remove(BATTERY_SYNC_COST_SINCE_KEY_PREFIX + mode)
+            } else {
+                putLong(BATTERY_SYNC_COST_EVENTS_KEY_PREFIX + mode, cost.events)
+                putLong(BATTERY_SYNC_COST_HANDLER_CPU_TIME_KEY_PREFIX + mode, cost.handlerCpuTimeUs)
+                putLong(BATTERY_SYNC_COST_SINCE_KEY_PREFIX + mode, cost.sinceTimestamp)
+            }
+        }
+    }
+
     private var notificationSyncDisabledPackagesCache: MutableStateFlow<Set<String>>? = null
     private fun getOrCreateNotificationsSyncDisbaledPackageCache(): MutableStateFlow<Set<String>> {
         val notificationSyncDisabledPackagesCache = notificationSyncDisabledPackagesCache
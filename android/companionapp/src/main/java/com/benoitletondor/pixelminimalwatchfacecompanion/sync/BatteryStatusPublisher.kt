@@ -0,0 +1,157 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
+import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.math.abs
+import kotlin.math.sign
+
+/**
+ * Sends the phone battery status to the watch from a single coroutine: updates received while a
+ * send is in flight are conflated, percent changes are rate limited by [Policy.minIntervalMs] and
+ * need [Policy.hysteresisPercent] to go back in the opposite direction. Forced updates and charging
+ * state changes are sent right away.
+ *
+ * The last sent status and its direction are persisted so that a process restart doesn't send it
+ * again nor reset the hysteresis.
+ */
+@Singleton
+class BatteryStatusPublisher @Inject constructor(
+    private val syncOutbox: SyncOutbox,
+    private val storage: Storage,
+) : CoroutineScope by CoroutineScope(SupervisorJob() + Dispatchers.Default) {
+    @Volatile var policy = Policy.DEFAULT
+
+    private val wakeUpChannel = Channel<Unit>(Channel.CONFLATED)
+    private var pendingStatus: PendingStatus? = null
+    private var deferredWakeUpJob: Job? = null
+
+    init {
+        launch {
+            for (wakeUp in wakeUpChannel) {
+                publishPendingStatus()
+            }
+        }
+    }
+
+    /**
+     * @param force send even if the percent didn't change enough or was sent recently, for plug/unplug
+     * and low/okay thresholds
+     */
+    @Synchronized
+    fun onBatteryStatusChanged(percent: Int, isCharging: Boolean, force: Boolean) {
+        // Don't lose a pending forced update when conflating it
+        val forceSend = force || pendingStatus?.force == true
+        pendingStatus = PendingStatus(percent, isCharging, forceSend)
+
+        wakeUpChannel.trySend(Unit)
+    }
+
+    @Synchronized
+    private fun takePendingStatus(): PendingStatus? = pendingStatus.also { pendingStatus = null }
+
+    @Synchronized
+    private fun deferPendingStatus(status: PendingStatus, delayMs: Long) {
+        // A newer status may have arrived meanwhile, it will be published instead
+        if (pendingStatus == null) {
+            pendingStatus = status
+        }
+
+        deferredWakeUpJob?.cancel()
+        deferredWakeUpJob = launch {
+            delay(delayMs)
+            wakeUpChannel.trySend(Unit)
+        }
+    }
+
+    private suspend fun publishPendingStatus() {
+        val status = takePendingStatus() ?: return
+        val lastSentStatus = storage.getLastBatteryStatusSent()
+        val now = System.currentTimeMillis()
+
+        val chargingStateChanged = lastSentStatus != null && lastSentStatus.isCharging != status.isCharging
+        if (!status.force && !chargingStateChanged && lastSentStatus != null) {
+            if (!isPercentChangeSignificant(lastSentStatus, status.percent)) {
+                if (DEBUG_LOGS) Log.d(TAG, "publishPendingStatus, ignoring ${status.percent}%, last sent: ${lastSentStatus.percent}%")
+                return
+            }
+
+            val elapsedSinceLastSentMs = now - lastSentStatus.timestamp
+            if (elapsedSinceLastSentMs in 0 until policy.minIntervalMs) {
+                if (DEBUG_LOGS) Log.d(TAG, "publishPendingStatus, deferring ${status.percent}%")
+                deferPendingStatus(status, policy.minIntervalMs - elapsedSinceLastSentMs)
+                return
+            }
+        }
+
+        // Once handed to the outbox, the status is delivered even if no watch is reachable right now
+        val delivered = syncOutbox.send(SyncOutbox.Entry.Battery(status.percent, status.isCharging))
+
+        val direction = if (lastSentStatus == null || chargingStateChanged) {
+            0
+        } else {
+            (status.percent - lastSentStatus.percent).sign
+        }
+        storage.setLastBatteryStatusSent(Storage.BatteryStatusSent(status.percent, status.isCharging, now, direction))
+
+        if (DEBUG_LOGS) Log.d(TAG, "publishPendingStatus, sent ${status.percent}% (charging: ${status.isCharging}, forced: ${status.force}, delivered: $delivered)")
+    }
+
+    private fun isPercentChangeSignificant(lastSentStatus: Storage.BatteryStatusSent, percent: Int): Boolean {
+        val delta = percent - lastSentStatus.percent
+        if (delta == 0) {
+            return false
+        }
+
+        // Going back needs a bigger change so that a level oscillating between 2 values isn't sent on every change
+        val minDelta = if (lastSentStatus.direction != 0 && delta.sign != lastSentStatus.direction) {
+            policy.hysteresisPercent
+        } else {
+            1
+        }
+
+        return abs(delta) >= minDelta
+    }
+
+    private class PendingStatus(
+        val percent: Int,
+        val isCharging: Boolean,
+        val force: Boolean,
+    )
+
+    data class Policy(
+        val minIntervalMs: Long,
+        val hysteresisPercent: Int,
+    ) {
+        companion object {
+            val DEFAULT = Policy(
+                minIntervalMs = 1000 * 60L,
+                hysteresisPercent = 2,
+            )
+        }
+    }
+
+    companion object {
+        private const val TAG = "BatteryStatusPublisher"
+        private val DEBUG_LOGS = BuildConfig.DEBUG
+    }
+}
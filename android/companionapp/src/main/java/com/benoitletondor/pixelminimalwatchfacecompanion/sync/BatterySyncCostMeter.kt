@@ -0,0 +1,110 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import android.os.Debug
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
+import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Counts the battery events handled by each phone battery sync [Mode] and the CPU time of the thread
+ * running their handler, so that both modes can be compared on a real device.
+ *
+ * Events aren't process wakeups: most battery broadcasts reach an already running process. Only the
+ * CPU time spent inside the handlers is counted, not the process one nor the one of sending the
+ * status to the watch, which runs asynchronously in both modes.
+ */
+@Singleton
+class BatterySyncCostMeter @Inject constructor(
+    private val storage: Storage,
+) {
+    private val costs = mutableMapOf<Mode, Storage.BatterySyncCost>()
+    private var lastFlushTimestamp = 0L
+
+    fun <T> measure(mode: Mode, handler: () -> T): T {
+        val startCpuTimeNs = Debug.threadCpuTimeNanos()
+        try {
+            return handler()
+        } finally {
+            onEventHandled(mode, handlerCpuTimeUs = (Debug.threadCpuTimeNanos() - startCpuTimeNs).coerceAtLeast(0) / 1000)
+        }
+    }
+
+    @Synchronized
+    private fun onEventHandled(mode: Mode, handlerCpuTimeUs: Long) {
+        val now = System.currentTimeMillis()
+        val cost = getCost(mode) ?: Storage.BatterySyncCost(events = 0, handlerCpuTimeUs = 0, sinceTimestamp = now)
+        costs[mode] = cost.copy(
+            events = cost.events + 1,
+            handlerCpuTimeUs = cost.handlerCpuTimeUs + handlerCpuTimeUs,
+        )
+
+        // Battery changed broadcasts can be received every few seconds, don't write each of them
+        if (mode == Mode.LOW_POWER_JOB || now - lastFlushTimestamp >= FLUSH_INTERVAL_MS) {
+            flush(now)
+        }
+
+        if (DEBUG_LOGS) Log.d(TAG, "onEventHandled, $mode: ${costs[mode]}")
+    }
+
+    @Synchronized
+    fun getCosts(): Map<Mode, Storage.BatterySyncCost> {
+        return Mode.values()
+            .mapNotNull { mode -> getCost(mode)?.let { mode to it } }
+            .toMap()
+    }
+
+    @Synchronized
+    fun reset() {
+        costs.clear()
+        for (mode in Mode.values()) {
+            storage.setBatterySyncCost(mode.name, null)
+        }
+    }
+
+    private fun getCost(mode: Mode): Storage.BatterySyncCost? {
+        return costs[mode] ?: storage.getBatterySyncCost(mode.name)?.also { costs[mode] = it }
+    }
+
+    private fun flush(now: Long) {
+        for ((mode, cost) in costs) {
+            storage.setBatterySyncCost(mode.name, cost)
+        }
+
+        lastFlushTimestamp = now
+    }
+
+    enum class Mode {
+        /**
+         * Battery broadcasts received by the registered receiver, kept alive by the foreground service
+         */
+        RECEIVER,
+
+        /**
+         * Jobs of [com.benoitletondor.pixelminimalwatchfacecompanion.LowPowerBatterySyncJobService]
+         */
+        LOW_POWER_JOB,
+    }
+
+    companion object {
+        private const val TAG = "BatterySyncCostMeter"
+        private const val FLUSH_INTERVAL_MS = 1000 * 60L
+        private val DEBUG_LOGS = BuildConfig.DEBUG
+    }
+}
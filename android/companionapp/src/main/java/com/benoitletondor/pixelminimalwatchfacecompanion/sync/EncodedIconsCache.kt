@@ -0,0 +1,149 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import android.util.LruCache
+import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
+import java.io.File
+
+/**
+ * Encoded notification icon asset bytes by icon id, in memory and in a small disk tier in the
+ * cache dir, so that an icon is rendered and encoded only once.
+ */
+class EncodedIconsCache(
+    context: Context,
+    directoryName: String,
+    private val fileExtension: String,
+) {
+    private val memoryCache = object : LruCache<Int, ByteArray>(MEMORY_CACHE_MAX_SIZE_BYTES) {
+        override fun sizeOf(key: Int, value: ByteArray): Int = value.size
+    }
+    private val directory = File(context.cacheDir, directoryName)
+
+    private var hitCount = 0L
+    private var missCount = 0L
+    private var encodeCount = 0L
+    private var totalEncodeTimeMs = 0L
+
+    /**
+     * Returns the cached bytes for [iconId], or encodes them with [encode] and caches them.
+     */
+    fun getOrEncode(iconId: Int, encode: () -> ByteArray?): ByteArray? {
+        memoryCache.get(iconId)?.let { bytes ->
+            onHit()
+            return bytes
+        }
+
+        readFromDisk(iconId)?.let { bytes ->
+            memoryCache.put(iconId, bytes)
+            onHit()
+            return bytes
+        }
+
+        val encodeStartTs = SystemClock.elapsedRealtime()
+        val bytes = encode() ?: return null
+        synchronized(this) {
+            missCount++
+            encodeCount++
+            totalEncodeTimeMs += SystemClock.elapsedRealtime() - encodeStartTs
+        }
+
+        memoryCache.put(iconId, bytes)
+        writeToDisk(iconId, bytes)
+
+        return bytes
+    }
+
+    @Synchronized
+    private fun onHit() {
+        hitCount++
+
+        if (DEBUG_LOGS) Log.d(TAG, "hit, hits: $hitCount, misses: $missCount, estimated encode time saved: ${getEstimatedEncodeTimeSavedMs()}ms")
+    }
+
+    /**
+     * Hits multiplied by the average measured encode time.
+     */
+    @Synchronized
+    fun getEstimatedEncodeTimeSavedMs(): Long {
+        if (encodeCount == 0L) {
+            return 0L
+        }
+
+        return hitCount * totalEncodeTimeMs / encodeCount
+    }
+
+    private fun readFromDisk(iconId: Int): ByteArray? {
+        val file = getFile(iconId)
+        if (!file.exists()) {
+            return null
+        }
+
+        return try {
+            val bytes = file.readBytes()
+            file.setLastModified(System.currentTimeMillis())
+            bytes
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while reading icon $iconId", e)
+            file.delete()
+            null
+        }
+    }
+
+    @Synchronized
+    private fun writeToDisk(iconId: Int, bytes: ByteArray) {
+        try {
+            if (!directory.exists()) {
+                directory.mkdirs()
+            }
+
+            getFile(iconId).writeBytes(bytes)
+            trimDiskTier()
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while writing icon $iconId", e)
+            getFile(iconId).delete()
+        }
+    }
+
+    private fun trimDiskTier() {
+        val files = directory.listFiles() ?: return
+        var totalSize = files.sumOf { it.length() }
+        if (totalSize <= DISK_CACHE_MAX_SIZE_BYTES) {
+            return
+        }
+
+        for (file in files.sortedBy { it.lastModified() }) {
+            totalSize -= file.length()
+            file.delete()
+
+            if (totalSize <= DISK_CACHE_MAX_SIZE_BYTES) {
+                return
+            }
+        }
+    }
+
+    private fun getFile(iconId: Int) = File(directory, "$iconId.$fileExtension")
+
+    companion object {
+        private const val TAG = "EncodedIconsCache"
+        private const val MEMORY_CACHE_MAX_SIZE_BYTES = 64 * 1024
+        private const val DISK_CACHE_MAX_SIZE_BYTES = 512 * 1024L
+        private val DEBUG_LOGS = BuildConfig.DEBUG
+    }
+}
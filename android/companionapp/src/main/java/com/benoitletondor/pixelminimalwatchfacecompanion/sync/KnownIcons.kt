@@ -0,0 +1,37 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+/**
+ * Icon ids held by every watch of [watchNodeIds], from what each one advertised in its known icons
+ * DataItem. A watch that never advertised (older versions) holds none.
+ */
+internal fun getIconIdsKnownByAllWatches(watchNodeIds: Collection<String>, knownIconIdsByNodeId: Map<String, Set<Int>>): Set<Int> {
+    if (watchNodeIds.isEmpty()) {
+        return emptySet()
+    }
+
+    return watchNodeIds
+        .map { knownIconIdsByNodeId[it] ?: emptySet() }
+        .reduce { knownByAll, knownByNode -> knownByAll intersect knownByNode }
+}
+
+/**
+ * Ids of the [notificationIconIds] whose asset must be attached: the ones not held by every watch.
+ */
+internal fun getIconIdsToAttach(notificationIconIds: Collection<Int>, iconIdsKnownByAllWatches: Set<Int>): Set<Int> {
+    return notificationIconIds.filterTo(LinkedHashSet()) { it !in iconIdsKnownByAllWatches }
+}
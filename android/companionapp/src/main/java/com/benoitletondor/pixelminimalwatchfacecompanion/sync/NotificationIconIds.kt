@@ -0,0 +1,76 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.drawable.Icon
+import android.util.Log
+import androidx.core.graphics.drawable.toBitmap
+import java.util.*
+
+const val NOTIFICATION_ICON_SIZE_PX = 32
+
+/**
+ * Stable notification icon ids, computed from the alpha channel of the icon rendered at the size
+ * sent to the watch: identical icons get the same id, across apps and process restarts.
+ */
+class NotificationIconIds(
+    private val context: Context,
+) {
+    // Icon doesn't override equals/hashCode, so this is an identity cache that doesn't retain icons
+    private val iconIdsCache = WeakHashMap<Icon, Int>()
+
+    fun getId(icon: Icon): Int {
+        synchronized(iconIdsCache) {
+            iconIdsCache[icon]?.let { return it }
+        }
+
+        val id = computeId(icon)
+
+        synchronized(iconIdsCache) {
+            iconIdsCache[icon] = id
+        }
+
+        return id
+    }
+
+    private fun computeId(icon: Icon): Int {
+        val bitmap = try {
+            icon.loadDrawable(context)?.toBitmap(NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX, Bitmap.Config.ARGB_8888)
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to render icon $icon", e)
+            null
+        } ?: return icon.toString().hashCode()
+
+        val pixels = IntArray(NOTIFICATION_ICON_SIZE_PX * NOTIFICATION_ICON_SIZE_PX)
+        bitmap.getPixels(pixels, 0, NOTIFICATION_ICON_SIZE_PX, 0, 0, NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX)
+
+        // FNV-1a over the alpha bytes, the only part of the icon the watch uses
+        var hash = FNV_OFFSET_BASIS
+        for (pixel in pixels) {
+            hash = (hash xor (pixel ushr 24)) * FNV_PRIME
+        }
+
+        return hash
+    }
+
+    companion object {
+        private const val TAG = "NotificationIconIds"
+        private const val FNV_OFFSET_BASIS = -0x7ee3623b // 0x811C9DC5
+        private const val FNV_PRIME = 0x01000193
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import android.graphics.Bitmap
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+
+/**
+ * Several notification icons packed in a single deflated asset, as alpha only pixels:
+ *
+ * version (byte), icon size (short), icons count (byte), icon ids (int each),
+ * then each icon alpha bytes, row by row, in the same order as the ids.
+ *
+ * Must be kept in sync with the watch face decoder.
+ */
+object NotificationIconsSheet {
+    const val VERSION = 1
+
+    fun encode(iconIdsToAlpha: List<Pair<Int, ByteArray>>): ByteArray {
+        val byteStream = ByteArrayOutputStream()
+        // A deflater given to DeflaterOutputStream isn't ended on close, its native memory must be released here
+        val deflater = Deflater(Deflater.BEST_COMPRESSION)
+        try {
+            DataOutputStream(DeflaterOutputStream(byteStream, deflater)).use { output ->
+                output.writeByte(VERSION)
+                output.writeShort(NOTIFICATION_ICON_SIZE_PX)
+                output.writeByte(iconIdsToAlpha.size)
+
+                for ((iconId, _) in iconIdsToAlpha) {
+                    output.writeInt(iconId)
+                }
+
+                for ((_, alpha) in iconIdsToAlpha) {
+                    output.write(alpha)
+                }
+            }
+        } finally {
+            deflater.end()
+        }
+
+        return byteStream.toByteArray()
+    }
+
+    /**
+     * Alpha channel of a [NOTIFICATION_ICON_SIZE_PX] sized bitmap, one byte per pixel.
+     */
+    fun Bitmap.toAlphaBytes(): ByteArray {
+        val pixels = IntArray(NOTIFICATION_ICON_SIZE_PX * NOTIFICATION_ICON_SIZE_PX)
+        getPixels(pixels, 0, NOTIFICATION_ICON_SIZE_PX, 0, 0, NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX)
+
+        return ByteArray(pixels.size) { index -> (pixels[index] ushr 24).toByte() }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+/**
+ * Phone status sent to the watch as a single message, only the fields set are written:
+ *
+ * version (byte), fields mask (byte), then for each field of the mask, in this order:
+ * battery percent and charging (2 bytes), battery sync activated (byte),
+ * notifications sync status (byte), premium (byte).
+ *
+ * Must be kept in sync with the watch face decoder.
+ */
+data class StatusFrame(
+    val battery: Battery? = null,
+    val batterySyncActivated: Boolean? = null,
+    val notificationsSyncStatus: Sync.NotificationsSyncStatus? = null,
+    val isPremium: Boolean? = null,
+) {
+    /**
+     * Fields of [newer] replace the ones of this frame.
+     */
+    fun mergeWith(newer: StatusFrame) = StatusFrame(
+        battery = newer.battery ?: battery,
+        batterySyncActivated = newer.batterySyncActivated ?: batterySyncActivated,
+        notificationsSyncStatus = newer.notificationsSyncStatus ?: notificationsSyncStatus,
+        isPremium = newer.isPremium ?: isPremium,
+    )
+
+    fun encode(): ByteArray {
+        var fieldsMask = 0
+        val bytes = mutableListOf<Byte>()
+
+        if (battery != null) {
+            fieldsMask = fieldsMask or FIELD_BATTERY
+            bytes.add(battery.percent.toByte())
+            bytes.add(battery.isCharging.toByte())
+        }
+
+        if (batterySyncActivated != null) {
+            fieldsMask = fieldsMask or FIELD_BATTERY_SYNC_ACTIVATED
+            bytes.add(batterySyncActivated.toByte())
+        }
+
+        if (notificationsSyncStatus != null) {
+            fieldsMask = fieldsMask or FIELD_NOTIFICATIONS_SYNC_STATUS
+            bytes.add(notificationsSyncStatus.intValue.toByte())
+        }
+
+        if (isPremium != null) {
+            fieldsMask = fieldsMask or FIELD_PREMIUM
+            bytes.add(isPremium.toByte())
+        }
+
+        return byteArrayOf(VERSION.toByte(), fieldsMask.toByte()) + bytes.toByteArray()
+    }
+
+    data class Battery(
+        val percent: Int,
+        val isCharging: Boolean,
+    )
+
+    companion object {
+        const val PATH = "/status"
+        const val VERSION = 1
+
+        private const val FIELD_BATTERY = 1
+        private const val FIELD_BATTERY_SYNC_ACTIVATED = 1 shl 1
+        private const val FIELD_NOTIFICATIONS_SYNC_STATUS = 1 shl 2
+        private const val FIELD_PREMIUM = 1 shl 3
+    }
+}
+
+private fun Boolean.toByte(): Byte = if (this) { 1 } else { 0 }
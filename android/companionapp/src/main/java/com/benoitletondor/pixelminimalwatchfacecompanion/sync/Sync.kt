@@ -20,17 +20,33 @@ import android.service.notification.StatusBarNotification
 import com.google.android.gms.wearable.CapabilityClient
 
 interface Sync {
-    suspend fun sendPremiumStatus(isUserPremium: Boolean)
+    /**
+     * @return false if no watch was reachable to receive the message. The premium DataItem is
+     * still delivered once a watch connects.
+     */
+    suspend fun sendPremiumStatus(isUserPremium: Boolean): Boolean
     suspend fun getWearableStatus(): WearableStatus
     suspend fun openPlayStoreOnWatch(): Boolean
     fun subscribeToCapabilityChanges(listener: CapabilityClient.OnCapabilityChangedListener)
     fun unsubscribeToCapabilityChanges(listener: CapabilityClient.OnCapabilityChangedListener)
 
-    suspend fun sendBatterySyncStatus(syncActivated: Boolean)
-    suspend fun sendBatteryStatus(batteryPercentage: Int)
+    /**
+     * @return false if no watch was reachable
+     */
+    suspend fun sendBatterySyncStatus(syncActivated: Boolean): Boolean
+    /**
+     * @return false if no watch was reachable
+     */
+    suspend fun sendBatteryStatus(batteryPercentage: Int, isCharging: Boolean): Boolean
 
-    suspend fun sendNotificationsSyncStatus(syncActivated: NotificationsSyncStatus)
-    suspend fun sendActiveNotifications(notifications: NotificationsData)
+    /**
+     * @return false if no watch was reachable
+     */
+    suspend fun sendNotificationsSyncStatus(syncActivated: NotificationsSyncStatus): Boolean
+    /**
+     * @param attachAllIcons attach every icon asset, even the ones the watch advertised as known
+     */
+    suspend fun sendActiveNotifications(notifications: NotificationsData, attachAllIcons: Boolean = false)
 
     sealed class WearableStatus {
         object AvailableAppNotInstalled : WearableStatus()
@@ -18,19 +18,29 @@ package com.benoitletondor.pixelminimalwatchfacecompanion.sync
 import android.content.Context
 import android.content.Intent
 import android.graphics.Bitmap
+import android.graphics.drawable.Icon
 import android.net.Uri
 import android.os.Bundle
 import android.os.Handler
 import android.os.ResultReceiver
+import android.os.SystemClock
 import android.service.notification.StatusBarNotification
 import android.util.Log
 import androidx.core.graphics.drawable.toBitmap
 import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.NotificationIconsSheet.toAlphaBytes
 import com.google.android.gms.tasks.Task
 import com.google.android.gms.wearable.*
 import com.google.android.wearable.intent.RemoteIntent
 import dagger.hilt.android.qualifiers.ApplicationContext
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.suspendCancellableCoroutine
 import java.io.ByteArrayOutputStream
 import java.lang.RuntimeException
@@ -44,6 +54,12 @@ private const val KEY_TIMESTAMP = "ts"
 private const val KEY_SYNC_ACTIVATED = "/batterySync/syncActivated"
 private const val KEY_BATTERY_STATUS_PERCENT = "/batterySync/batteryStatus"
 private const val KEY_NOTIFICATIONS_SYNC_STATUS = "/notificationsSync/syncStatus"
+private const val KEY_NOTIFICATIONS_PROTOCOL_VERSION = "protocolVersion"
+private const val KNOWN_ICONS_PATH = "/notifications/knownIcons"
+private const val KNOWN_ICONS_KEY_VERSION = "version"
+private const val KNOWN_ICONS_KEY_ICON_IDS = "iconIds"
+private const val KEY_ICONS_SHEET = "iconsSheet"
+private const val STATUS_FRAME_CAPABILITY = "pixel_minimal_watch_face_status_frame_v${StatusFrame.VERSION}"
 
 class SyncImpl @Inject constructor(
     @ApplicationContext private val context: Context,
@@ -51,8 +67,61 @@ class SyncImpl @Inject constructor(
     private val capabilityClient = Wearable.getCapabilityClient(context)
     private val messageClient = Wearable.getMessageClient(context)
     private val dataClient = Wearable.getDataClient(context)
+    private val encodedIconsCache = EncodedIconsCache(context, directoryName = "encoded_notification_icons", fileExtension = "png")
+    private val alphaIconsCache = EncodedIconsCache(context, directoryName = "alpha_notification_icons", fileExtension = "a8")
 
-    override suspend fun sendPremiumStatus(isUserPremium: Boolean) {
+    @Volatile private var cachedWatchNodes: CachedWatchNodes? = null
+    private val watchCapabilityListener = CapabilityClient.OnCapabilityChangedListener { capabilityInfo ->
+        if (DEBUG_LOGS) Log.d(TAG, "watch capability changed: ${capabilityInfo.nodes}")
+        cachedWatchNodes = CachedWatchNodes(capabilityInfo.nodes.filterNearby(), SystemClock.elapsedRealtime())
+    }
+
+    // Node id to what it advertised in its known icons DataItem, null until loaded
+    @Volatile private var cachedWatchesProtocol: Map<String, WatchProtocol>? = null
+    private val watchesProtocolLock = Any()
+    private val knownIconsListener = DataClient.OnDataChangedListener { dataEvents ->
+        synchronized(watchesProtocolLock) {
+            val watchesProtocol = cachedWatchesProtocol?.toMutableMap() ?: return@OnDataChangedListener
+            for (dataEvent in dataEvents) {
+                val nodeId = dataEvent.dataItem.uri.host ?: continue
+                if (dataEvent.type == DataEvent.TYPE_DELETED) {
+                    watchesProtocol.remove(nodeId)
+                } else {
+                    dataEvent.dataItem.toWatchProtocol()
+                        ?.let { watchesProtocol[nodeId] = it }
+                        ?: watchesProtocol.remove(nodeId)
+                }
+            }
+
+            if (DEBUG_LOGS) Log.d(TAG, "known icons changed, watches protocol: ${watchesProtocol.mapValues { it.value.version }}")
+            cachedWatchesProtocol = watchesProtocol
+        }
+    }
+
+    // Ids of the watch nodes advertising they decode status frames, null until loaded
+    @Volatile private var cachedStatusFrameNodeIds: Set<String>? = null
+    private val statusFrameCapabilityListener = CapabilityClient.OnCapabilityChangedListener { capabilityInfo ->
+        if (DEBUG_LOGS) Log.d(TAG, "status frame capability changed: ${capabilityInfo.nodes}")
+        cachedStatusFrameNodeIds = capabilityInfo.nodes.map { it.id }.toSet()
+    }
+
+    private val statusFrameScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val statusFrameLock = Any()
+    private var pendingStatusFrame: PendingStatusFrame? = null
+
+    init {
+        capabilityClient.addListener(watchCapabilityListener, BuildConfig.WATCH_CAPABILITY)
+        capabilityClient.addListener(statusFrameCapabilityListener, STATUS_FRAME_CAPABILITY)
+        dataClient.addListener(
+            knownIconsListener,
+            Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).authority("*").path(KNOWN_ICONS_PATH).build(),
+            DataClient.FILTER_LITERAL,
+        )
+        statusFrameScope.launch { getWatchesProtocol() }
+        statusFrameScope.launch { getStatusFrameNodeIds() }
+    }
+
+    override suspend fun sendPremiumStatus(isUserPremium: Boolean): Boolean {
         // Sending as data request
         val putDataRequest = PutDataMapRequest.create("/premium").run {
             dataMap.putBoolean(KEY_PREMIUM, isUserPremium)
@@ -64,13 +133,11 @@ class SyncImpl @Inject constructor(
         dataClient.putDataItem(putDataRequest).await()
 
         // Send also as message
-        val watchNodes = getConnectedWatchNodes()
-        for(watchNode in watchNodes) {
-            messageClient.sendMessage(
-                watchNode.id,
+        return sendStatus(StatusFrame(isPremium = isUserPremium)) {
+            sendMessageToWatches(
                 KEY_PREMIUM,
                 byteArrayOf(if (isUserPremium) { 1 } else { 0 }),
-            ).await()
+            )
         }
     }
 
@@ -129,90 +196,336 @@ class SyncImpl @Inject constructor(
         capabilityClient.removeListener(listener)
     }
 
-    override suspend fun sendBatterySyncStatus(syncActivated: Boolean) {
-        val watchNodes = getConnectedWatchNodes()
-
-        for(watchNode in watchNodes) {
-            messageClient.sendMessage(
-                watchNode.id,
+    override suspend fun sendBatterySyncStatus(syncActivated: Boolean): Boolean {
+        return sendStatus(StatusFrame(batterySyncActivated = syncActivated)) {
+            sendMessageToWatches(
                 KEY_SYNC_ACTIVATED,
                 byteArrayOf(if(syncActivated) { 1 } else { 0 }),
-            ).await()
+            )
         }
     }
 
-    override suspend fun sendBatteryStatus(batteryPercentage: Int) {
-        val watchNodes = getConnectedWatchNodes()
-
-        for(watchNode in watchNodes) {
-            messageClient.sendMessage(
-                watchNode.id,
+    override suspend fun sendBatteryStatus(batteryPercentage: Int, isCharging: Boolean): Boolean {
+        return sendStatus(StatusFrame(battery = StatusFrame.Battery(batteryPercentage, isCharging))) {
+            sendMessageToWatches(
                 KEY_BATTERY_STATUS_PERCENT,
                 byteArrayOf(batteryPercentage.toByte()),
-            ).await()
+            )
         }
     }
 
-    override suspend fun sendNotificationsSyncStatus(syncActivated: Sync.NotificationsSyncStatus) {
-        val watchNodes = getConnectedWatchNodes()
-
-        for(watchNode in watchNodes) {
-            messageClient.sendMessage(
-                watchNode.id,
+    override suspend fun sendNotificationsSyncStatus(syncActivated: Sync.NotificationsSyncStatus): Boolean {
+        return sendStatus(StatusFrame(notificationsSyncStatus = syncActivated)) {
+            sendMessageToWatches(
                 KEY_NOTIFICATIONS_SYNC_STATUS,
                 byteArrayOf(syncActivated.intValue.toByte()),
-            ).await()
+            )
+        }
+    }
+
+    /**
+     * Sends [frame] merged with the other status changes made within [STATUS_FRAME_COALESCING_WINDOW_MS],
+     * or with [sendLegacyMessage] if a reachable watch doesn't decode status frames.
+     *
+     * @return false if no watch was reachable
+     */
+    private suspend fun sendStatus(frame: StatusFrame, sendLegacyMessage: suspend () -> Boolean): Boolean {
+        // Only read from the cache to keep a single round trip per send, it's loaded at init
+        val statusFrameNodeIds = cachedStatusFrameNodeIds
+        if (statusFrameNodeIds == null) {
+            statusFrameScope.launch { getStatusFrameNodeIds() }
+            return sendLegacyMessage()
+        }
+
+        val watchNodes = getConnectedWatchNodes()
+        if (watchNodes.isEmpty() || !watchNodes.all { it.id in statusFrameNodeIds }) {
+            return sendLegacyMessage()
+        }
+
+        val sent = synchronized(statusFrameLock) {
+            val pendingFrame = pendingStatusFrame
+            if (pendingFrame != null) {
+                pendingFrame.frame = pendingFrame.frame.mergeWith(frame)
+                return@synchronized pendingFrame.sent
+            }
+
+            val newPendingFrame = PendingStatusFrame(frame)
+            pendingStatusFrame = newPendingFrame
+            statusFrameScope.launch {
+                delay(STATUS_FRAME_COALESCING_WINDOW_MS)
+                flushStatusFrame()
+            }
+
+            newPendingFrame.sent
+        }
+
+        return sent.await()
+    }
+
+    private suspend fun flushStatusFrame() {
+        val pendingFrame = synchronized(statusFrameLock) {
+            pendingStatusFrame.also { pendingStatusFrame = null }
+        } ?: return
+
+        try {
+            val bytes = pendingFrame.frame.encode()
+            val sent = sendMessageToWatches(StatusFrame.PATH, bytes)
+
+            if (DEBUG_LOGS) Log.d(TAG, "flushStatusFrame: ${pendingFrame.frame}, ${bytes.size} bytes, sent: $sent")
+            pendingFrame.sent.complete(sent)
+        } catch (e: Exception) {
+            pendingFrame.sent.completeExceptionally(e)
         }
     }
 
-    override suspend fun sendActiveNotifications(notifications: Sync.NotificationsData) {
+    private class PendingStatusFrame(
+        var frame: StatusFrame,
+    ) {
+        val sent = CompletableDeferred<Boolean>()
+    }
+
+    override suspend fun sendActiveNotifications(notifications: Sync.NotificationsData, attachAllIcons: Boolean) {
         val notificationIconIds = ArrayList(notifications.iconIds.take(NUMBER_OF_NOTIFICATIONS_TO_SEND))
+        val watchesInfo = getWatchesInfo(getWatchesProtocol())
+        val iconIdsKnownByWatches = if (attachAllIcons) { emptySet() } else { watchesInfo.knownIconIds }
+        val iconIdsToAttach = getIconIdsToAttach(notificationIconIds, iconIdsKnownByWatches)
+        val iconsToAttach = notifications.iconIdsToIcons.filterKeys { it in iconIdsToAttach }
+        var attachedIconsCount = 0
 
         val putDataRequest = PutDataMapRequest.create("/notifications").run {
+            dataMap.putInt(KEY_NOTIFICATIONS_PROTOCOL_VERSION, NOTIFICATIONS_PROTOCOL_VERSION)
             dataMap.putIntegerArrayList("iconIds", notificationIconIds)
             dataMap.putBoolean("hasMore", notifications.iconIds.size > NUMBER_OF_NOTIFICATIONS_TO_SEND)
-            notifications.iconIdsToIcons.forEach { (iconId, icon) ->
-                if (iconId !in notificationIconIds) {
-                    return@forEach
+
+            if (watchesInfo.supportsIconsSheet) {
+                val iconIdsToAlpha = iconsToAttach.mapNotNull { (iconId, icon) ->
+                    val alpha = alphaIconsCache.getOrEncode(iconId) {
+                        icon.loadDrawable(context)
+                            ?.toBitmap(NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX, Bitmap.Config.ARGB_8888)
+                            ?.toAlphaBytes()
+                    } ?: return@mapNotNull null
+
+                    iconId to alpha
                 }
 
-                val asset = icon.loadDrawable(context)
-                    ?.toBitmap(NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX)
-                    ?.createAsset() ?: return@forEach
+                if (iconIdsToAlpha.isNotEmpty()) {
+                    val sheetEncodingStartNs = SystemClock.elapsedRealtimeNanos()
+                    val sheet = NotificationIconsSheet.encode(iconIdsToAlpha)
+                    val sheetEncodingTimeNs = SystemClock.elapsedRealtimeNanos() - sheetEncodingStartNs
+
+                    if (DEBUG_LOGS) {
+                        val sheetIconIds = iconIdsToAlpha.map { (iconId, _) -> iconId }.toSet()
+                        logIconsSheetComparedToPngs(iconsToAttach.filterKeys { it in sheetIconIds }, sheet, sheetEncodingTimeNs)
+                    }
+
+                    dataMap.putAsset(KEY_ICONS_SHEET, Asset.createFromBytes(sheet))
+                    attachedIconsCount = iconIdsToAlpha.size
+                }
+            } else {
+                iconsToAttach.forEach { (iconId, icon) ->
+                    val assetBytes = encodedIconsCache.getOrEncode(iconId) {
+                        icon.loadDrawable(context)
+                            ?.toBitmap(NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX)
+                            ?.encode()
+                    } ?: return@forEach
+                    val asset = Asset.createFromBytes(assetBytes)
 
-                dataMap.putAsset(
-                    "icon/$iconId",
-                    asset
-                )
+                    dataMap.putAsset(
+                        "icon/$iconId",
+                        asset
+                    )
+                    attachedIconsCount++
+                }
             }
+
             dataMap.putLong(KEY_TIMESTAMP, System.currentTimeMillis())
             asPutDataRequest()
         }
 
         putDataRequest.setUrgent()
 
+        if (DEBUG_LOGS) Log.d(TAG, "sendActiveNotifications: ${notificationIconIds.size} icons, $attachedIconsCount attached (sheet: ${watchesInfo.supportsIconsSheet}), payload ${putDataRequest.data?.size ?: 0} bytes + ${putDataRequest.assets.values.sumOf { it.data?.size ?: 0 }} asset bytes")
+
         if (coroutineContext.isActive) {
             dataClient.putDataItem(putDataRequest).await()
         }
     }
 
-    private fun Bitmap.createAsset(): Asset = ByteArrayOutputStream().let { byteStream ->
+    /**
+     * Icon ids that every reachable watch advertised holding, and whether they all can decode an
+     * icons sheet. Watches that never advertised (older versions) get all assets, one per icon.
+     */
+    private suspend fun getWatchesInfo(watchesProtocol: Map<String, WatchProtocol>): WatchesInfo {
+        val watchNodes = getConnectedWatchNodes()
+        if (watchNodes.isEmpty()) {
+            return WatchesInfo.UNKNOWN
+        }
+
+        return WatchesInfo(
+            knownIconIds = getIconIdsKnownByAllWatches(
+                watchNodeIds = watchNodes.map { it.id },
+                knownIconIdsByNodeId = watchesProtocol.mapValues { (_, watchProtocol) -> watchProtocol.knownIconIds },
+            ),
+            supportsIconsSheet = watchNodes.all { (watchesProtocol[it.id]?.version ?: 0) >= KNOWN_ICONS_SHEET_PROTOCOL_VERSION },
+        )
+    }
+
+    /**
+     * What each watch advertised in its known icons DataItem, queried once then kept up to date by [knownIconsListener].
+     */
+    private suspend fun getWatchesProtocol(): Map<String, WatchProtocol> {
+        cachedWatchesProtocol?.let { return it }
+
+        try {
+            val watchesProtocol = mutableMapOf<String, WatchProtocol>()
+            val dataItems = dataClient.getDataItems(
+                Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).path(KNOWN_ICONS_PATH).build()
+            ).await()
+
+            try {
+                for (dataItem in dataItems) {
+                    val nodeId = dataItem.uri.host ?: continue
+                    watchesProtocol[nodeId] = dataItem.toWatchProtocol() ?: continue
+                }
+            } finally {
+                dataItems.release()
+            }
+
+            synchronized(watchesProtocolLock) {
+                // The listener may have filled it meanwhile with more recent values
+                return cachedWatchesProtocol ?: watchesProtocol.also { cachedWatchesProtocol = it }
+            }
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e(TAG, "Unable to get watches protocol", e)
+            return emptyMap()
+        }
+    }
+
+    /**
+     * Watch nodes advertising [STATUS_FRAME_CAPABILITY], queried once then kept up to date by
+     * [statusFrameCapabilityListener]. Older watches don't advertise it and get one message per status.
+     */
+    private suspend fun getStatusFrameNodeIds(): Set<String> {
+        cachedStatusFrameNodeIds?.let { return it }
+
+        return try {
+            val nodeIds = capabilityClient.getCapability(STATUS_FRAME_CAPABILITY, CapabilityClient.FILTER_ALL)
+                .await()
+                .nodes
+                .map { it.id }
+                .toSet()
+
+            // The listener may have filled it meanwhile with more recent values
+            cachedStatusFrameNodeIds ?: nodeIds.also { cachedStatusFrameNodeIds = it }
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e(TAG, "Unable to get status frame capable watches", e)
+            emptySet()
+        }
+    }
+
+    private fun DataItem.toWatchProtocol(): WatchProtocol? {
+        val dataMap = DataMapItem.fromDataItem(this).dataMap
+        val version = dataMap.getInt(KNOWN_ICONS_KEY_VERSION)
+        if (version < KNOWN_ICONS_MIN_PROTOCOL_VERSION) {
+            return null
+        }
+
+        return WatchProtocol(
+            version = version,
+            knownIconIds = dataMap.getIntegerArrayList(KNOWN_ICONS_KEY_ICON_IDS)?.toSet() ?: emptySet(),
+        )
+    }
+
+    private class WatchProtocol(
+        val version: Int,
+        val knownIconIds: Set<Int>,
+    )
+
+    private class WatchesInfo(
+        val knownIconIds: Set<Int>,
+        val supportsIconsSheet: Boolean,
+    ) {
+        companion object {
+            val UNKNOWN = WatchesInfo(knownIconIds = emptySet(), supportsIconsSheet = false)
+        }
+    }
+
+    private fun Bitmap.encode(): ByteArray = ByteArrayOutputStream().let { byteStream ->
         compress(Bitmap.CompressFormat.PNG, 80, byteStream)
-        Asset.createFromBytes(byteStream.toByteArray())
+        byteStream.toByteArray()
+    }
+
+    /**
+     * Debug only: encodes the same icons as per-icon PNG assets, like for watches not supporting
+     * the sheet, to compare their size and encoding time with the sheet one.
+     */
+    private fun logIconsSheetComparedToPngs(icons: Map<Int, Icon>, sheet: ByteArray, sheetEncodingTimeNs: Long) {
+        val bitmaps = icons.values.mapNotNull { icon ->
+            icon.loadDrawable(context)?.toBitmap(NOTIFICATION_ICON_SIZE_PX, NOTIFICATION_ICON_SIZE_PX)
+        }
+
+        val pngsEncodingStartNs = SystemClock.elapsedRealtimeNanos()
+        val pngsSize = bitmaps.sumOf { it.encode().size }
+        val pngsEncodingTimeNs = SystemClock.elapsedRealtimeNanos() - pngsEncodingStartNs
+
+        Log.d(TAG, "iconsSheet: ${icons.size} icons, sheet ${sheet.size} bytes in ${sheetEncodingTimeNs / 1000}µs, PNGs $pngsSize bytes in ${pngsEncodingTimeNs / 1000}µs")
+    }
+
+    /**
+     * @return false if no watch was reachable
+     */
+    private suspend fun sendMessageToWatches(path: String, data: ByteArray): Boolean {
+        val watchNodes = getConnectedWatchNodes()
+        for(watchNode in watchNodes) {
+            try {
+                messageClient.sendMessage(
+                    watchNode.id,
+                    path,
+                    data,
+                ).await()
+            } catch (e: Exception) {
+                // The node may be gone without a capability callback yet, query it again next time
+                cachedWatchNodes = null
+                throw e
+            }
+        }
+
+        return watchNodes.isNotEmpty()
     }
 
+    /**
+     * Reachable watch nodes, kept up to date by capability changes. Queried again once [WATCH_NODES_CACHE_TTL_MS]
+     * elapsed in case a callback was missed.
+     */
     private suspend fun getConnectedWatchNodes(): Set<Node> {
+        val cachedWatchNodes = cachedWatchNodes
+        if (cachedWatchNodes != null && SystemClock.elapsedRealtime() - cachedWatchNodes.timestamp < WATCH_NODES_CACHE_TTL_MS) {
+            return cachedWatchNodes.nodes
+        }
+
         return try {
-            capabilityClient.getCapability(BuildConfig.WATCH_CAPABILITY, CapabilityClient.FILTER_REACHABLE)
+            val nodes = capabilityClient.getCapability(BuildConfig.WATCH_CAPABILITY, CapabilityClient.FILTER_REACHABLE)
                 .await()
                 .nodes
                 .filterNearby()
+
+            this.cachedWatchNodes = CachedWatchNodes(nodes, SystemClock.elapsedRealtime())
+            nodes
         } catch (t: Throwable) {
             Log.e("Sync", "Unable to find watch node", t)
             emptySet()
         }
     }
 
+    private class CachedWatchNodes(
+        val nodes: Set<Node>,
+        val timestamp: Long,
+    )
+
 }
 
 private suspend fun <T> Task<T>.await() = suspendCancellableCoroutine<T> { continuation ->
@@ -225,5 +538,11 @@ private fun Set<Node>.filterNearby(): Set<Node> {
     return filter { it.isNearby }.toSet()
 }
 
-private const val NOTIFICATION_ICON_SIZE_PX = 32
-private const val NUMBER_OF_NOTIFICATIONS_TO_SEND = 5
\ No newline at end of file
+private const val NUMBER_OF_NOTIFICATIONS_TO_SEND = 5
+private const val NOTIFICATIONS_PROTOCOL_VERSION = 2
+private const val KNOWN_ICONS_MIN_PROTOCOL_VERSION = 1
+private const val KNOWN_ICONS_SHEET_PROTOCOL_VERSION = 2
+private const val STATUS_FRAME_COALESCING_WINDOW_MS = 500L
+private const val TAG = "Sync"
+private const val WATCH_NODES_CACHE_TTL_MS = 1000 * 60 * 5L
+private val DEBUG_LOGS = BuildConfig.DEBUG
\ No newline at end of file
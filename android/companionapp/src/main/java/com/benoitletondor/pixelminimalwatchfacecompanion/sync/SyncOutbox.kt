@@ -0,0 +1,237 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchfacecompanion.BuildConfig
+import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import com.google.android.gms.wearable.CapabilityClient
+import com.google.android.gms.wearable.CapabilityInfo
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.math.min
+
+/**
+ * Keeps the latest value of each status [Channel] that couldn't be delivered to the watch,
+ * persisted across process restarts, and sends it again with an exponential backoff or as soon as
+ * a watch becomes reachable. A newer value of a channel replaces the pending one.
+ *
+ * Sync status replies aren't part of it: the watch settings screen applies them, and a late replay
+ * could overwrite a setting changed since.
+ */
+@Singleton
+class SyncOutbox @Inject constructor(
+    private val sync: Sync,
+    private val storage: Storage,
+) : CoroutineScope by CoroutineScope(SupervisorJob() + Dispatchers.Default), CapabilityClient.OnCapabilityChangedListener {
+    private val pendingEntries = mutableMapOf<Channel, Entry>()
+    private var retryAttempt = 0
+    private var retryJob: Job? = null
+
+    private val statsMutableFlow = MutableStateFlow(Stats(pendingChannels = emptySet(), retryCount = 0, failedDeliveryCount = 0))
+    val statsFlow: StateFlow<Stats> = statsMutableFlow
+
+    init {
+        synchronized(this) {
+            for ((channelName, value) in storage.getSyncOutboxPendingValues()) {
+                val entry = Channel.values()
+                    .firstOrNull { it.name == channelName }
+                    ?.decode(value)
+
+                if (entry == null) {
+                    storage.setSyncOutboxPendingValue(channelName, null)
+                    continue
+                }
+
+                pendingEntries[entry.channel] = entry
+            }
+
+            updateStats()
+        }
+
+        sync.subscribeToCapabilityChanges(this)
+
+        if (DEBUG_LOGS) Log.d(TAG, "init, pending: ${pendingEntries.values}")
+        retryNow()
+    }
+
+    /**
+     * Sends [entry] right away, keeping it for a later retry if no watch received it.
+     *
+     * @return true if it was delivered now
+     */
+    suspend fun send(entry: Entry): Boolean {
+        setPending(entry)
+        return deliver(entry)
+    }
+
+    /**
+     * Keeps [entry] for a later retry, for values whose first send already failed.
+     */
+    fun enqueue(entry: Entry) {
+        setPending(entry)
+        scheduleRetry()
+    }
+
+    override fun onCapabilityChanged(capabilityInfo: CapabilityInfo) {
+        if (capabilityInfo.nodes.any { it.isNearby }) {
+            retryNow()
+        }
+    }
+
+    @Synchronized
+    private fun retryNow() {
+        if (pendingEntries.isEmpty()) {
+            return
+        }
+
+        retryAttempt = 0
+        retryJob?.cancel()
+        retryJob = launch { retryPendingEntries() }
+    }
+
+    @Synchronized
+    private fun scheduleRetry() {
+        if (retryJob?.isActive == true || pendingEntries.isEmpty()) {
+            return
+        }
+
+        val delayMs = min(RETRY_BASE_DELAY_MS shl min(retryAttempt, 16), RETRY_MAX_DELAY_MS)
+        retryAttempt++
+
+        if (DEBUG_LOGS) Log.d(TAG, "scheduleRetry, in ${delayMs}ms (attempt $retryAttempt)")
+        retryJob = launch {
+            delay(delayMs)
+            retryPendingEntries()
+        }
+    }
+
+    private suspend fun retryPendingEntries() {
+        val entries = synchronized(this) { pendingEntries.values.toList() }
+        for (entry in entries) {
+            synchronized(this) {
+                statsMutableFlow.value = statsMutableFlow.value.copy(retryCount = statsMutableFlow.value.retryCount + 1)
+            }
+
+            deliver(entry)
+        }
+
+        synchronized(this) {
+            retryJob = null
+            if (pendingEntries.isEmpty()) {
+                retryAttempt = 0
+            }
+        }
+
+        scheduleRetry()
+    }
+
+    private suspend fun deliver(entry: Entry): Boolean {
+        val delivered = try {
+            when(entry) {
+                is Entry.Battery -> sync.sendBatteryStatus(entry.percent, entry.isCharging)
+                is Entry.PremiumStatus -> sync.sendPremiumStatus(entry.isPremium)
+            }
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e(TAG, "Error while delivering $entry", e)
+            false
+        }
+
+        if (delivered) {
+            removePendingIfUnchanged(entry)
+        } else {
+            synchronized(this) {
+                statsMutableFlow.value = statsMutableFlow.value.copy(failedDeliveryCount = statsMutableFlow.value.failedDeliveryCount + 1)
+            }
+
+            if (DEBUG_LOGS) Log.d(TAG, "deliver, $entry not delivered, keeping it for retry")
+            scheduleRetry()
+        }
+
+        return delivered
+    }
+
+    @Synchronized
+    private fun setPending(entry: Entry) {
+        pendingEntries[entry.channel] = entry
+        storage.setSyncOutboxPendingValue(entry.channel.name, entry.encode())
+        updateStats()
+    }
+
+    @Synchronized
+    private fun removePendingIfUnchanged(entry: Entry) {
+        // A newer value may have been set while this one was sent, it still has to be delivered
+        if (pendingEntries[entry.channel] != entry) {
+            return
+        }
+
+        pendingEntries.remove(entry.channel)
+        storage.setSyncOutboxPendingValue(entry.channel.name, null)
+        updateStats()
+    }
+
+    private fun updateStats() {
+        statsMutableFlow.value = statsMutableFlow.value.copy(pendingChannels = pendingEntries.keys.toSet())
+    }
+
+    enum class Channel {
+        BATTERY,
+        PREMIUM;
+
+        fun decode(value: String): Entry? = try {
+            when(this) {
+                BATTERY -> {
+                    val (percent, isCharging) = value.split(",")
+                    Entry.Battery(percent.toInt(), isCharging.toBooleanStrict())
+                }
+                PREMIUM -> Entry.PremiumStatus(value.toBooleanStrict())
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to decode $this value: $value", e)
+            null
+        }
+    }
+
+    sealed class Entry(val channel: Channel) {
+        abstract fun encode(): String
+
+        data class Battery(val percent: Int, val isCharging: Boolean) : Entry(Channel.BATTERY) {
+            override fun encode(): String = "$percent,$isCharging"
+        }
+
+        data class PremiumStatus(val isPremium: Boolean) : Entry(Channel.PREMIUM) {
+            override fun encode(): String = isPremium.toString()
+        }
+    }
+
+    data class Stats(
+        val pendingChannels: Set<Channel>,
+        val retryCount: Long,
+        val failedDeliveryCount: Long,
+    )
+
+    companion object {
+        private const val TAG = "SyncOutbox"
+        private const val RETRY_BASE_DELAY_MS = 1000 * 30L
+        private const val RETRY_MAX_DELAY_MS = 1000 * 60 * 30L
+        private val DEBUG_LOGS = BuildConfig.DEBUG
+    }
+}
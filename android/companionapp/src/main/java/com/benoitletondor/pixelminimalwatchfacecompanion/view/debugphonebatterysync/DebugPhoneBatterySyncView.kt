@@ -42,6 +42,9 @@ import androidx.compose.ui.unit.sp
 import androidx.core.content.ContextCompat.startActivity
 import androidx.navigation.NavController
 import com.benoitletondor.pixelminimalwatchfacecompanion.ForegroundService
+import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.BatterySyncCostMeter
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.SyncOutbox
 import com.benoitletondor.pixelminimalwatchfacecompanion.ui.AppMaterialTheme
 import com.benoitletondor.pixelminimalwatchfacecompanion.ui.blueButtonColors
 import com.benoitletondor.pixelminimalwatchfacecompanion.ui.components.AppTopBarScaffold
@@ -102,6 +105,12 @@ fun DebugPhoneBatterySync(
                 isForegroundServiceOn = state.isForegroundServiceOn,
                 onForegroundServiceSwitchedChanged = viewModel::onForegroundServiceSwitchedChanged,
                 onNotificationSettingsButtonPressed = viewModel::onNotificationSettingsButtonPressed,
+                isLowPowerModeOn = state.isLowPowerModeOn,
+                onLowPowerModeSwitchedChanged = viewModel::onLowPowerModeSwitchedChanged,
+                syncOutboxStats = state.syncOutboxStats,
+                batterySyncCosts = state.batterySyncCosts,
+                onRefreshBatterySyncCostsButtonPressed = viewModel::onRefreshBatterySyncCostsButtonPressed,
+                onResetBatterySyncCostsButtonPressed = viewModel::onResetBatterySyncCostsButtonPressed,
             )
         }
     )
@@ -115,6 +124,12 @@ private fun DebugPhoneBatterySyncLayout(
     isForegroundServiceOn: Boolean,
     onForegroundServiceSwitchedChanged: (Boolean) -> Unit,
     onNotificationSettingsButtonPressed: () -> Unit,
+    isLowPowerModeOn: Boolean,
+    onLowPowerModeSwitchedChanged: (Boolean) -> Unit,
+    syncOutboxStats: SyncOutbox.Stats,
+    batterySyncCosts: Map<BatterySyncCostMeter.Mode, Storage.BatterySyncCost>,
+    onRefreshBatterySyncCostsButtonPressed: () -> Unit,
+    onResetBatterySyncCostsButtonPressed: () -> Unit,
 ) {
     Column(
         modifier = Modifier
@@ -252,10 +267,156 @@ private fun DebugPhoneBatterySyncLayout(
             }
         }
 
+        Spacer(modifier = Modifier.height(40.dp))
+
+        Text(
+            text = "Low-power mode",
+            textAlign = TextAlign.Center,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+            fontSize = 18.sp,
+        )
+
+        Spacer(modifier = Modifier.height(8.dp))
+
+        Text(
+            text = "Instead of being notified of every battery change, the app is woken up by the system every 15 minutes and when the phone is plugged, and sends the battery level to the watch every 5%.",
+            textAlign = TextAlign.Start,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+        )
+
+        Spacer(modifier = Modifier.height(8.dp))
+
+        Text(
+            text = "It uses less phone battery but the watch is updated less often. It can't be used with always-on mode.",
+            textAlign = TextAlign.Start,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+        )
+
+        Spacer(modifier = Modifier.height(12.dp))
+
+        Switch(
+            checked = isLowPowerModeOn,
+            onCheckedChange = onLowPowerModeSwitchedChanged,
+        )
+
+        Text(
+            text = if (isLowPowerModeOn) "Low-power mode activated" else "Low-power mode deactivated",
+            color = MaterialTheme.colorScheme.onBackground,
+            fontSize = 14.sp,
+        )
+
+        Spacer(modifier = Modifier.height(40.dp))
+
+        Text(
+            text = "Pending watch updates",
+            textAlign = TextAlign.Center,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+            fontSize = 18.sp,
+        )
+
+        Spacer(modifier = Modifier.height(8.dp))
+
+        Text(
+            text = if (syncOutboxStats.pendingChannels.isEmpty()) {
+                "✔️ Every update has been delivered to the watch."
+            } else {
+                "${syncOutboxStats.pendingChannels.size} update(s) waiting for the watch to be reachable: ${syncOutboxStats.pendingChannels.joinToString { it.name.lowercase() }}"
+            },
+            textAlign = TextAlign.Start,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+        )
+
+        Spacer(modifier = Modifier.height(8.dp))
+
+        Text(
+            text = "Retries: ${syncOutboxStats.retryCount}, failed deliveries: ${syncOutboxStats.failedDeliveryCount}",
+            textAlign = TextAlign.Start,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+            fontSize = 14.sp,
+        )
+
+        Spacer(modifier = Modifier.height(40.dp))
+
+        Text(
+            text = "Battery sync cost",
+            textAlign = TextAlign.Center,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+            fontSize = 18.sp,
+        )
+
+        Spacer(modifier = Modifier.height(8.dp))
+
+        Text(
+            text = "Battery events handled and CPU time spent handling them on this phone for each mode. Sending to the watch isn't included.",
+            textAlign = TextAlign.Start,
+            modifier = Modifier.fillMaxWidth(),
+            color = MaterialTheme.colorScheme.onBackground,
+        )
+
+        for (mode in BatterySyncCostMeter.Mode.values()) {
+            Spacer(modifier = Modifier.height(8.dp))
+
+            Text(
+                text = "${mode.displayName()}: ${batterySyncCosts[mode]?.toDisplayString() ?: "not measured yet"}",
+                textAlign = TextAlign.Start,
+                modifier = Modifier.fillMaxWidth(),
+                color = MaterialTheme.colorScheme.onBackground,
+                fontSize = 14.sp,
+            )
+        }
+
+        Spacer(modifier = Modifier.height(12.dp))
+
+        Row(
+            horizontalArrangement = Arrangement.spacedBy(10.dp),
+        ) {
+            Button(
+                onClick = onRefreshBatterySyncCostsButtonPressed,
+                colors = blueButtonColors(),
+            ) {
+                Text(
+                    text = "Refresh",
+                    textAlign = TextAlign.Center,
+                )
+            }
+
+            Button(
+                onClick = onResetBatterySyncCostsButtonPressed,
+                colors = blueButtonColors(),
+            ) {
+                Text(
+                    text = "Reset",
+                    textAlign = TextAlign.Center,
+                )
+            }
+        }
+
         Spacer(modifier = Modifier.height(20.dp))
     }
 }
 
+private fun BatterySyncCostMeter.Mode.displayName(): String = when(this) {
+    BatterySyncCostMeter.Mode.RECEIVER -> "Battery receiver"
+    BatterySyncCostMeter.Mode.LOW_POWER_JOB -> "Low-power mode"
+}
+
+private fun Storage.BatterySyncCost.toDisplayString(): String {
+    val hours = ((System.currentTimeMillis() - sinceTimestamp) / (1000 * 60 * 60.0)).coerceAtLeast(1 / 60.0)
+    return "$events events (%.1f/h), %.1fms handler CPU (%.2fms/h) over %.1fh".format(
+        events / hours,
+        handlerCpuTimeUs / 1000.0,
+        handlerCpuTimeUs / 1000.0 / hours,
+        hours,
+    )
+}
+
 @Composable
 @Preview(showSystemUi = true, name = "Battery optimization off, foreground on")
 private fun PreviewBatteryOptimOff() {
@@ -267,12 +428,18 @@ private fun PreviewBatteryOptimOff() {
             isForegroundServiceOn = true,
             onForegroundServiceSwitchedChanged = {},
             onNotificationSettingsButtonPressed = {},
+            isLowPowerModeOn = false,
+            onLowPowerModeSwitchedChanged = {},
+            syncOutboxStats = SyncOutbox.Stats(pendingChannels = emptySet(), retryCount = 0, failedDeliveryCount = 0),
+            batterySyncCosts = emptyMap(),
+            onRefreshBatterySyncCostsButtonPressed = {},
+            onResetBatterySyncCostsButtonPressed = {},
         )
     }
 }
 
 @Composable
-@Preview(showSystemUi = true, name = "Battery optimization on, foreground off")
+@Preview(showSystemUi = true, name = "Battery optimization on, foreground off, low-power on")
 private fun PreviewBatteryOptimOn() {
     AppMaterialTheme {
         DebugPhoneBatterySyncLayout(
@@ -282,6 +449,14 @@ private fun PreviewBatteryOptimOn() {
             isForegroundServiceOn = false,
             onForegroundServiceSwitchedChanged = {},
             onNotificationSettingsButtonPressed = {},
+            isLowPowerModeOn = true,
+            onLowPowerModeSwitchedChanged = {},
+            syncOutboxStats = SyncOutbox.Stats(pendingChannels = emptySet(), retryCount = 0, failedDeliveryCount = 0),
+            batterySyncCosts = mapOf(
+                BatterySyncCostMeter.Mode.LOW_POWER_JOB to Storage.BatterySyncCost(events = 12, handlerCpuTimeUs = 8400, sinceTimestamp = System.currentTimeMillis() - 1000 * 60 * 60 * 3L),
+            ),
+            onRefreshBatterySyncCostsButtonPressed = {},
+            onResetBatterySyncCostsButtonPressed = {},
         )
     }
 }
@@ -297,6 +472,12 @@ private fun PreviewBatteryOptimOffAndroid13() {
             isForegroundServiceOn = true,
             onForegroundServiceSwitchedChanged = {},
             onNotificationSettingsButtonPressed = {},
+            isLowPowerModeOn = false,
+            onLowPowerModeSwitchedChanged = {},
+            syncOutboxStats = SyncOutbox.Stats(pendingChannels = emptySet(), retryCount = 0, failedDeliveryCount = 0),
+            batterySyncCosts = emptyMap(),
+            onRefreshBatterySyncCostsButtonPressed = {},
+            onResetBatterySyncCostsButtonPressed = {},
         )
     }
 }
@@ -312,6 +493,12 @@ private fun PreviewBatteryOptimOnAndroid13() {
             isForegroundServiceOn = false,
             onForegroundServiceSwitchedChanged = {},
             onNotificationSettingsButtonPressed = {},
+            isLowPowerModeOn = false,
+            onLowPowerModeSwitchedChanged = {},
+            syncOutboxStats = SyncOutbox.Stats(pendingChannels = emptySet(), retryCount = 0, failedDeliveryCount = 0),
+            batterySyncCosts = emptyMap(),
+            onRefreshBatterySyncCostsButtonPressed = {},
+            onResetBatterySyncCostsButtonPressed = {},
         )
     }
 }
\ No newline at end of file
@@ -15,12 +15,17 @@
  */
 package com.benoitletondor.pixelminimalwatchfacecompanion.view.debugphonebatterysync
 
+import android.content.Context
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import com.benoitletondor.pixelminimalwatchfacecompanion.BatteryStatusBroadcastReceiver
 import com.benoitletondor.pixelminimalwatchfacecompanion.device.Device
 import com.benoitletondor.pixelminimalwatchfacecompanion.helper.MutableLiveFlow
 import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.BatterySyncCostMeter
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.SyncOutbox
 import dagger.hilt.android.lifecycle.HiltViewModel
+import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.launch
 import javax.inject.Inject
@@ -29,9 +34,14 @@ import javax.inject.Inject
 class DebugPhoneBatterySyncViewModel @Inject constructor(
     val device: Device,
     private val storage: Storage,
+    syncOutbox: SyncOutbox,
+    private val batterySyncCostMeter: BatterySyncCostMeter,
+    @ApplicationContext private val context: Context,
 ) : ViewModel() {
     private val isBatteryOptimizationOffMutableFlow = MutableStateFlow(device.isBatteryOptimizationOff())
     private val isForegroundServiceOnMutableFlow = MutableStateFlow(isForegroundServiceEnabled())
+    private val isLowPowerModeOnMutableFlow = MutableStateFlow(storage.isLowPowerBatterySyncEnabled())
+    private val batterySyncCostsMutableFlow = MutableStateFlow(batterySyncCostMeter.getCosts())
 
     private val eventMutableLiveFlow = MutableLiveFlow<Event>()
     val eventLiveFlow: Flow<Event> = eventMutableLiveFlow
@@ -39,10 +49,16 @@ class DebugPhoneBatterySyncViewModel @Inject constructor(
     val stateFlow = combine(
         isBatteryOptimizationOffMutableFlow,
         isForegroundServiceOnMutableFlow,
+        isLowPowerModeOnMutableFlow,
+        syncOutbox.statsFlow,
+        batterySyncCostsMutableFlow,
         ::buildState
     ).stateIn(viewModelScope, SharingStarted.Eagerly, buildState(
         isBatteryOptimizationOff = isBatteryOptimizationOffMutableFlow.value,
         isForegroundServiceOn = isForegroundServiceOnMutableFlow.value,
+        isLowPowerModeOn = isLowPowerModeOnMutableFlow.value,
+        syncOutboxStats = syncOutbox.statsFlow.value,
+        batterySyncCosts = batterySyncCostsMutableFlow.value,
     ))
 
     fun onDisableBatteryOptimizationButtonPressed() {
@@ -54,6 +70,11 @@ class DebugPhoneBatterySyncViewModel @Inject constructor(
     }
 
     fun onForegroundServiceSwitchedChanged(activate: Boolean) {
+        // Always-on mode keeps the app alive to receive every battery change, low-power mode is useless with it
+        if (activate && isLowPowerModeOnMutableFlow.value) {
+            setLowPowerModeEnabled(false)
+        }
+
         isForegroundServiceOnMutableFlow.value = activate
         storage.setForegroundServiceEnabled(activate)
 
@@ -64,6 +85,34 @@ class DebugPhoneBatterySyncViewModel @Inject constructor(
         }
     }
 
+    fun onLowPowerModeSwitchedChanged(activate: Boolean) {
+        if (activate && isForegroundServiceOnMutableFlow.value) {
+            isForegroundServiceOnMutableFlow.value = false
+            storage.setForegroundServiceEnabled(false)
+            device.finishForegroundService()
+        }
+
+        setLowPowerModeEnabled(activate)
+    }
+
+    fun onResetBatterySyncCostsButtonPressed() {
+        batterySyncCostMeter.reset()
+        batterySyncCostsMutableFlow.value = batterySyncCostMeter.getCosts()
+    }
+
+    fun onRefreshBatterySyncCostsButtonPressed() {
+        batterySyncCostsMutableFlow.value = batterySyncCostMeter.getCosts()
+    }
+
+    private fun setLowPowerModeEnabled(enabled: Boolean) {
+        isLowPowerModeOnMutableFlow.value = enabled
+        storage.setLowPowerBatterySyncEnabled(enabled)
+
+        if (storage.isBatterySyncActivated()) {
+            BatteryStatusBroadcastReceiver.startBatterySync(context, storage)
+        }
+    }
+
     fun onNotificationSettingsButtonPressed() {
         viewModelScope.launch { eventMutableLiveFlow.emit(Event.ManageForegroundNotificationVisibility) }
     }
@@ -73,6 +122,9 @@ class DebugPhoneBatterySyncViewModel @Inject constructor(
     data class State(
         val isBatteryOptimizationOff: Boolean,
         val isForegroundServiceOn: Boolean,
+        val isLowPowerModeOn: Boolean,
+        val syncOutboxStats: SyncOutbox.Stats,
+        val batterySyncCosts: Map<BatterySyncCostMeter.Mode, Storage.BatterySyncCost>,
     )
 
     sealed class Event {
@@ -84,10 +136,16 @@ class DebugPhoneBatterySyncViewModel @Inject constructor(
         private fun buildState(
             isBatteryOptimizationOff: Boolean,
             isForegroundServiceOn: Boolean,
+            isLowPowerModeOn: Boolean,
+            syncOutboxStats: SyncOutbox.Stats,
+            batterySyncCosts: Map<BatterySyncCostMeter.Mode, Storage.BatterySyncCost>,
         ): State {
             return State(
                 isBatteryOptimizationOff = isBatteryOptimizationOff,
                 isForegroundServiceOn = isForegroundServiceOn,
+                isLowPowerModeOn = isLowPowerModeOn,
+                syncOutboxStats = syncOutboxStats,
+                batterySyncCosts = batterySyncCosts,
             )
         }
     }
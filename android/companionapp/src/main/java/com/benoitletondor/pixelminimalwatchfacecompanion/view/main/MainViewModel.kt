@@ -29,6 +29,7 @@ import com.benoitletondor.pixelminimalwatchfacecompanion.helper.MutableLiveFlow
 import com.benoitletondor.pixelminimalwatchfacecompanion.helper.combine
 import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
 import com.benoitletondor.pixelminimalwatchfacecompanion.sync.Sync
+import com.benoitletondor.pixelminimalwatchfacecompanion.sync.SyncOutbox
 import com.google.android.gms.wearable.CapabilityClient
 import com.google.android.gms.wearable.CapabilityInfo
 import dagger.hilt.android.lifecycle.HiltViewModel
@@ -40,6 +41,7 @@ import javax.inject.Inject
 class MainViewModel @Inject constructor(
     private val billing: Billing,
     private val sync: Sync,
+    private val syncOutbox: SyncOutbox,
     private val config: Config,
     private val storage: Storage
 ) : ViewModel(), CapabilityClient.OnCapabilityChangedListener {
@@ -104,10 +106,14 @@ class MainViewModel @Inject constructor(
             try {
                 isSyncingStateFlow.value = true
 
-                withContext(Dispatchers.IO) {
+                val sentToWatch = withContext(Dispatchers.IO) {
                     sync.sendPremiumStatus(userPremium)
                 }
 
+                if (!sentToWatch) {
+                    syncOutbox.enqueue(SyncOutbox.Entry.PremiumStatus(userPremium))
+                }
+
                 lastSyncedPremiumStatusStateFlow.value = userPremium
 
                 if(userPremium && (step is Step.Premium || step == Step.Syncing)) {
@@ -118,6 +124,8 @@ class MainViewModel @Inject constructor(
                     throw t
                 }
 
+                syncOutbox.enqueue(SyncOutbox.Entry.PremiumStatus(userPremium))
+
                 if (userPremium && (step is Step.Premium || step == Step.Syncing)) {
                     errorEventMutableFlow.emit(ErrorType.ErrorWhileSyncingWithWatch(t))
                 }
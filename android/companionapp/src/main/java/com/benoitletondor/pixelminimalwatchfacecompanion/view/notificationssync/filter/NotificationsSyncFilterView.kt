@@ -1,33 +1,35 @@
 package com.benoitletondor.pixelminimalwatchfacecompanion.view.notificationssync.filter
 
-import android.graphics.drawable.ColorDrawable
 import androidx.compose.foundation.Image
 import androidx.compose.foundation.clickable
+import androidx.compose.foundation.layout.Box
 import androidx.compose.foundation.layout.Row
 import androidx.compose.foundation.layout.Spacer
 import androidx.compose.foundation.layout.fillMaxWidth
 import androidx.compose.foundation.layout.height
 import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.layout.size
 import androidx.compose.foundation.layout.width
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.material.Checkbox
 import androidx.compose.material.CheckboxDefaults
 import androidx.compose.material.Text
+import androidx.compose.material3.CircularProgressIndicator
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.collectAsState
 import androidx.compose.runtime.getValue
+import androidx.compose.runtime.produceState
 import androidx.compose.runtime.remember
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.graphics.ImageBitmap
 import androidx.compose.ui.graphics.asImageBitmap
-import androidx.compose.ui.graphics.toArgb
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.tooling.preview.Preview
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
-import androidx.core.graphics.drawable.toBitmap
 import androidx.navigation.NavController
 import com.benoitletondor.pixelminimalwatchface.common.helper.dpToPx
 import com.benoitletondor.pixelminimalwatchfacecompanion.device.Device
@@ -50,6 +52,7 @@ fun NotificationsSyncFilterView(navController: NavController, viewModel: Notific
                 state = state,
                 onRetryButtonPressed = viewModel::onRetryButtonPressed,
                 onAppRowTapped = viewModel::onAppFilteringChanged,
+                loadAppIcon = { appInfo, sizePx -> viewModel.getAppIcon(appInfo, sizePx)?.asImageBitmap() },
             )
         }
     )
@@ -60,11 +63,12 @@ private fun NotificationsSyncFilterAppsLayout(
     state: NotificationsSyncFilterViewModel.State,
     onRetryButtonPressed: () -> Unit,
     onAppRowTapped: (Device.AppInfo, Boolean) -> Unit,
+    loadAppIcon: suspend (Device.AppInfo, sizePx: Int) -> ImageBitmap?,
 ) {
     when(state) {
         NotificationsSyncFilterViewModel.State.Loading -> Loading()
         is NotificationsSyncFilterViewModel.State.Error -> Error(state.exception, onRetryButtonPressed)
-        is NotificationsSyncFilterViewModel.State.Loaded -> Loaded(state.apps, onAppRowTapped)
+        is NotificationsSyncFilterViewModel.State.Loaded -> Loaded(state.apps, state.allAppsLoaded, onAppRowTapped, loadAppIcon)
     }
 }
 
@@ -82,12 +86,30 @@ private fun Error(
 @Composable
 private fun Loaded(
     apps: List<NotificationsSyncFilterViewModel.App>,
+    allAppsLoaded: Boolean,
     onAppRowTapped: (Device.AppInfo, Boolean) -> Unit,
+    loadAppIcon: suspend (Device.AppInfo, sizePx: Int) -> ImageBitmap?,
 ) {
     LazyColumn {
         for(app in apps) {
             item(key = app.appInfo.packageName) {
-                AppRow(app, onAppRowTapped)
+                AppRow(app, onAppRowTapped, loadAppIcon)
+            }
+        }
+
+        if (!allAppsLoaded) {
+            item(key = "loading") {
+                Box(
+                    contentAlignment = Alignment.Center,
+                    modifier = Modifier
+                        .fillMaxWidth()
+                        .padding(10.dp),
+                ) {
+                    CircularProgressIndicator(
+                        color = primaryRed,
+                        modifier = Modifier.size(24.dp),
+                    )
+                }
             }
         }
     }
@@ -97,6 +119,7 @@ private fun Loaded(
 private fun AppRow(
     app: NotificationsSyncFilterViewModel.App,
     onAppRowTapped: (Device.AppInfo, filtered: Boolean) -> Unit,
+    loadAppIcon: suspend (Device.AppInfo, sizePx: Int) -> ImageBitmap?,
 ) {
     Row(
         verticalAlignment = Alignment.CenterVertically,
@@ -109,14 +132,27 @@ private fun AppRow(
     ) {
         val context = LocalContext.current
         val iconSize = remember { context.dpToPx(40) }
+        // Only loaded once the row is visible
+        val icon by produceState<ImageBitmap?>(initialValue = null, app.appInfo.packageName) {
+            value = loadAppIcon(app.appInfo, iconSize)
+        }
 
-        Image(
-            bitmap = app.appInfo.icon.toBitmap(iconSize, iconSize).asImageBitmap(),
-            contentDescription = "App icon",
-            modifier = Modifier
-                .width(40.dp)
-                .height(40.dp),
-        )
+        val currentIcon = icon
+        if (currentIcon != null) {
+            Image(
+                bitmap = currentIcon,
+                contentDescription = "App icon",
+                modifier = Modifier
+                    .width(40.dp)
+                    .height(40.dp),
+            )
+        } else {
+            Spacer(
+                modifier = Modifier
+                    .width(40.dp)
+                    .height(40.dp),
+            )
+        }
 
         Spacer(modifier = Modifier.width(16.dp))
 
@@ -155,6 +191,7 @@ private fun ErrorPreview() {
             state = NotificationsSyncFilterViewModel.State.Error(Exception("Test")),
             onRetryButtonPressed = {},
             onAppRowTapped = { _, _ -> },
+            loadAppIcon = { _, _ -> null },
         )
     }
 }
@@ -167,6 +204,7 @@ private fun LoadingPreview() {
             state = NotificationsSyncFilterViewModel.State.Loading,
             onRetryButtonPressed = {},
             onAppRowTapped = { _, _ -> },
+            loadAppIcon = { _, _ -> null },
         )
     }
 }
@@ -183,7 +221,6 @@ private fun LoadedPreview() {
                         appInfo = Device.AppInfo(
                             packageName = "com.test.1",
                             appName = "Test app 1",
-                            icon = ColorDrawable(Color.Blue.toArgb()),
                         )
                     ),
                     NotificationsSyncFilterViewModel.App(
@@ -191,7 +228,6 @@ private fun LoadedPreview() {
                         appInfo = Device.AppInfo(
                             packageName = "com.test.2",
                             appName = "Test app 2 with super long title that should overflow to see how it looks",
-                            icon = ColorDrawable(Color.Red.toArgb()),
                         )
                     ),
                     NotificationsSyncFilterViewModel.App(
@@ -199,13 +235,14 @@ private fun LoadedPreview() {
                         appInfo = Device.AppInfo(
                             packageName = "com.test.3",
                             appName = "Test app 3",
-                            icon = ColorDrawable(Color.Green.toArgb()),
                         )
                     ),
                 ),
+                allAppsLoaded = true,
             ),
             onRetryButtonPressed = {},
             onAppRowTapped = { _, _ -> },
+            loadAppIcon = { _, _ -> null },
         )
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.benoitletondor.pixelminimalwatchfacecompanion.view.notificationssync.filter
 
+import android.graphics.Bitmap
 import android.util.Log
 import androidx.compose.runtime.Immutable
 import androidx.compose.runtime.Stable
@@ -8,14 +9,12 @@ import androidx.lifecycle.viewModelScope
 import com.benoitletondor.pixelminimalwatchfacecompanion.device.Device
 import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
 import dagger.hilt.android.lifecycle.HiltViewModel
-import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.first
-import kotlinx.coroutines.flow.flow
-import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.retryWhen
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
@@ -29,16 +28,17 @@ class NotificationsSyncFilterViewModel @Inject constructor(
     private val retryAfterErrorTriggerFlow = MutableSharedFlow<Unit>()
 
     val stateFlow: StateFlow<State> = combine(
-        flow { emit(device.listAllApps()) }.flowOn(Dispatchers.IO),
+        device.watchAllApps(),
         storage.watchNotificationSyncDisabledPackages(),
-    ) { apps, disabledAppsPackages ->
+    ) { appsList, disabledAppsPackages ->
         State.Loaded(
-            apps = apps.map { appInfo ->
+            apps = appsList.apps.map { appInfo ->
                 App(
                     appInfo = appInfo,
                     disabled = disabledAppsPackages.contains(appInfo.packageName),
                 )
-            }
+            },
+            allAppsLoaded = appsList.complete,
         ).eraseType()
     }
     .retryWhen { e, _ ->
@@ -58,6 +58,17 @@ class NotificationsSyncFilterViewModel @Inject constructor(
         }
     }
 
+    suspend fun getAppIcon(appInfo: Device.AppInfo, sizePx: Int): Bitmap? {
+        return try {
+            device.getAppIcon(appInfo.packageName, sizePx)
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e("NotificationsSyncFilterViewModel", "Error getting icon of ${appInfo.packageName}", e)
+            null
+        }
+    }
+
     fun onAppFilteringChanged(appInfo: Device.AppInfo, filtered: Boolean) {
         if (filtered) {
             storage.setNotificationsSyncAppDisabled(appInfo.packageName)
@@ -77,7 +88,8 @@ class NotificationsSyncFilterViewModel @Inject constructor(
         @Immutable
         data class Loaded(
             @Stable
-            val apps: List<App>
+            val apps: List<App>,
+            val allAppsLoaded: Boolean,
         ) : State()
 
         @Stable
@@ -0,0 +1,60 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion
+
+import com.benoitletondor.pixelminimalwatchfacecompanion.storage.Storage
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LowPowerBatterySyncJobServiceTest {
+    @Test
+    fun `first status is sent`() {
+        assertTrue(shouldSendLowPowerBatteryStatus(percent = 80, isCharging = false, lastSentStatus = null, isChargingJob = false))
+    }
+
+    @Test
+    fun `level within the same step is not sent`() {
+        assertFalse(shouldSendLowPowerBatteryStatus(percent = 76, isCharging = false, lastSentStatus = sent(percent = 79), isChargingJob = false))
+    }
+
+    @Test
+    fun `level crossing a step is sent`() {
+        assertTrue(shouldSendLowPowerBatteryStatus(percent = 74, isCharging = false, lastSentStatus = sent(percent = 75), isChargingJob = false))
+    }
+
+    @Test
+    fun `level crossing a step going up is sent`() {
+        assertTrue(shouldSendLowPowerBatteryStatus(percent = 80, isCharging = true, lastSentStatus = sent(percent = 79, isCharging = true), isChargingJob = false))
+    }
+
+    @Test
+    fun `charging state change is sent within the same step`() {
+        assertTrue(shouldSendLowPowerBatteryStatus(percent = 79, isCharging = false, lastSentStatus = sent(percent = 79, isCharging = true), isChargingJob = false))
+    }
+
+    @Test
+    fun `plug job always sends`() {
+        assertTrue(shouldSendLowPowerBatteryStatus(percent = 79, isCharging = true, lastSentStatus = sent(percent = 79, isCharging = true), isChargingJob = true))
+    }
+
+    private fun sent(percent: Int, isCharging: Boolean = false) = Storage.BatteryStatusSent(
+        percent = percent,
+        isCharging = isCharging,
+        timestamp = 0L,
+        direction = 0,
+    )
+}
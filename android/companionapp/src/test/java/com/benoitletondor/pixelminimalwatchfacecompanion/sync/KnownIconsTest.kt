@@ -0,0 +1,97 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchfacecompanion.sync
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class KnownIconsTest {
+    @Test
+    fun `icons known by a single watch are the ones it advertised`() {
+        val knownIconIds = getIconIdsKnownByAllWatches(
+            watchNodeIds = listOf("watch"),
+            knownIconIdsByNodeId = mapOf("watch" to setOf(1, 2, 3)),
+        )
+
+        assertEquals(setOf(1, 2, 3), knownIconIds)
+    }
+
+    @Test
+    fun `icons known by several watches are the ones all of them advertised`() {
+        val knownIconIds = getIconIdsKnownByAllWatches(
+            watchNodeIds = listOf("watch1", "watch2"),
+            knownIconIdsByNodeId = mapOf(
+                "watch1" to setOf(1, 2, 3),
+                "watch2" to setOf(2, 3, 4),
+            ),
+        )
+
+        assertEquals(setOf(2, 3), knownIconIds)
+    }
+
+    @Test
+    fun `a watch that never advertised knows no icon`() {
+        val knownIconIds = getIconIdsKnownByAllWatches(
+            watchNodeIds = listOf("watch1", "olderWatch"),
+            knownIconIdsByNodeId = mapOf("watch1" to setOf(1, 2, 3)),
+        )
+
+        assertEquals(emptySet<Int>(), knownIconIds)
+    }
+
+    @Test
+    fun `advertised icons of unreachable watches are ignored`() {
+        val knownIconIds = getIconIdsKnownByAllWatches(
+            watchNodeIds = listOf("watch1"),
+            knownIconIdsByNodeId = mapOf(
+                "watch1" to setOf(1, 2),
+                "unreachableWatch" to setOf(2),
+            ),
+        )
+
+        assertEquals(setOf(1, 2), knownIconIds)
+    }
+
+    @Test
+    fun `no reachable watch knows no icon`() {
+        val knownIconIds = getIconIdsKnownByAllWatches(
+            watchNodeIds = emptyList(),
+            knownIconIdsByNodeId = mapOf("watch" to setOf(1)),
+        )
+
+        assertEquals(emptySet<Int>(), knownIconIds)
+    }
+
+    @Test
+    fun `only icons not known by the watches are attached`() {
+        val iconIdsToAttach = getIconIdsToAttach(
+            notificationIconIds = listOf(1, 2, 3),
+            iconIdsKnownByAllWatches = setOf(2, 4),
+        )
+
+        assertEquals(setOf(1, 3), iconIdsToAttach)
+    }
+
+    @Test
+    fun `all icons are attached when the watches know none`() {
+        val iconIdsToAttach = getIconIdsToAttach(
+            notificationIconIds = listOf(1, 2, 1),
+            iconIdsKnownByAllWatches = emptySet(),
+        )
+
+        assertEquals(setOf(1, 2), iconIdsToAttach)
+    }
+}
@@ -88,6 +88,11 @@ public class CustomComplicationRenderer extends ComplicationRenderer {
     ComplicationRenderer.PaintSet mActivePaintSet = null;
     @VisibleForTesting
     ComplicationRenderer.PaintSet mAmbientPaintSet = null;
+    /**
+     * All ambient paint sets (low-bit x burn-in protection), built once per style so that ambient
+     * property changes only swap references and never allocate paints while drawing.
+     */
+    private final ComplicationRenderer.PaintSet[] mAmbientPaintSets = new ComplicationRenderer.PaintSet[4];
     @Nullable
     private TextPaint mMainTextPaint = null;
     @Nullable
@@ -119,10 +124,18 @@ public class CustomComplicationRenderer extends ComplicationRenderer {
         this.mActiveStyle = activeStyle;
         this.mAmbientStyle = ambientStyle;
         this.mActivePaintSet = new ComplicationRenderer.PaintSet(activeStyle, false, false, false);
-        this.mAmbientPaintSet = new ComplicationRenderer.PaintSet(ambientStyle, true, false, false);
+        this.mAmbientPaintSets[getAmbientPaintSetIndex(false, false)] = new ComplicationRenderer.PaintSet(ambientStyle, true, false, false);
+        this.mAmbientPaintSets[getAmbientPaintSetIndex(true, false)] = new ComplicationRenderer.PaintSet(ambientStyle, true, true, false);
+        this.mAmbientPaintSets[getAmbientPaintSetIndex(false, true)] = new ComplicationRenderer.PaintSet(ambientStyle, true, false, true);
+        this.mAmbientPaintSets[getAmbientPaintSetIndex(true, true)] = new ComplicationRenderer.PaintSet(ambientStyle, true, true, true);
+        this.mAmbientPaintSet = this.mAmbientPaintSets[getAmbientPaintSetIndex(false, false)];
         this.calculateBounds();
     }
 
+    private static int getAmbientPaintSetIndex(boolean lowBitAmbient, boolean burnInProtection) {
+        return (lowBitAmbient ? 1 : 0) | (burnInProtection ? 2 : 0);
+    }
+
     public void setComplicationData(@Nullable ComplicationData data) {
         if (!Objects.equals(this.mComplicationData, data)) {
             if (data == null) {
@@ -192,7 +205,7 @@ public class CustomComplicationRenderer extends ComplicationRenderer {
         if (this.mComplicationData != null && this.mComplicationData.getType() != 2 && this.mComplicationData.getType() != 1 && this.mComplicationData.isActive(currentTimeMillis)) {
             if (!this.mBounds.isEmpty()) {
                 if (inAmbientMode && (this.mAmbientPaintSet.lowBitAmbient != lowBitAmbient || this.mAmbientPaintSet.burnInProtection != burnInProtection)) {
-                    this.mAmbientPaintSet = new ComplicationRenderer.PaintSet(this.mAmbientStyle, true, lowBitAmbient, burnInProtection);
+                    this.mAmbientPaintSet = this.mAmbientPaintSets[getAmbientPaintSetIndex(lowBitAmbient, burnInProtection)];
                 }
 
                 ComplicationRenderer.PaintSet currentPaintSet = inAmbientMode ? this.mAmbientPaintSet : this.mActivePaintSet;
@@ -19,6 +19,7 @@ import android.annotation.SuppressLint;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.text.Layout;
+import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.StaticLayout;
@@ -44,6 +45,10 @@ import java.util.Objects;
  */
 public class CustomTextRenderer extends TextRenderer {
     private static final Class<?>[] SPAN_WHITELIST = new Class[]{ForegroundColorSpan.class, LocaleSpan.class, SubscriptSpan.class, SuperscriptSpan.class, StrikethroughSpan.class, StyleSpan.class, TypefaceSpan.class, UnderlineSpan.class};
+    private static final int SANITIZED_TEXT_CACHE_SIZE = 4;
+    private final CharSequence[] mSanitizedTextCacheKeys = new CharSequence[SANITIZED_TEXT_CACHE_SIZE];
+    private final CharSequence[] mSanitizedTextCacheValues = new CharSequence[SANITIZED_TEXT_CACHE_SIZE];
+    private int mSanitizedTextCacheNextIndex = 0;
     private final Rect mBounds = new Rect();
     private TextPaint mPaint;
     @Nullable
@@ -113,24 +118,60 @@ public class CustomTextRenderer extends TextRenderer {
     @VisibleForTesting
     CharSequence applySpanWhitelist(CharSequence text) {
         if (text instanceof Spanned) {
-            SpannableStringBuilder builder = new SpannableStringBuilder(text);
-            Object[] spans = builder.getSpans(0, text.length(), Object.class);
-            Object[] var4 = spans;
-            int var5 = spans.length;
-
-            for(int var6 = 0; var6 < var5; ++var6) {
-                Object span = var4[var6];
-                if (!this.isSpanAllowed(span)) {
-                    builder.removeSpan(span);
+            // Look texts up by identity before doing any work. Mutable Spannables can't be cached safely.
+            boolean cacheable = !(text instanceof Spannable);
+            if (cacheable) {
+                for (int i = 0; i < SANITIZED_TEXT_CACHE_SIZE; ++i) {
+                    if (this.mSanitizedTextCacheKeys[i] == text) {
+                        return this.mSanitizedTextCacheValues[i];
+                    }
                 }
             }
 
-            return builder;
+            CharSequence sanitizedText = this.removeDisallowedSpans((Spanned) text);
+            if (!cacheable) {
+                return sanitizedText;
+            }
+
+            this.mSanitizedTextCacheKeys[this.mSanitizedTextCacheNextIndex] = text;
+            this.mSanitizedTextCacheValues[this.mSanitizedTextCacheNextIndex] = sanitizedText;
+            this.mSanitizedTextCacheNextIndex = (this.mSanitizedTextCacheNextIndex + 1) % SANITIZED_TEXT_CACHE_SIZE;
+
+            return sanitizedText;
         } else {
             return text;
         }
     }
 
+    private CharSequence removeDisallowedSpans(Spanned text) {
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+
+        // Fast path: an immutable text with only whitelisted spans can be drawn as is. A mutable
+        // Spannable is always copied so that later changes by its provider aren't drawn.
+        if (!(text instanceof Spannable)) {
+            boolean hasDisallowedSpan = false;
+            for (Object span : spans) {
+                if (!this.isSpanAllowed(span)) {
+                    hasDisallowedSpan = true;
+                    break;
+                }
+            }
+
+            if (!hasDisallowedSpan) {
+                return text;
+            }
+        }
+
+        SpannableStringBuilder builder = new SpannableStringBuilder(text);
+        for (Object span : spans) {
+            if (!this.isSpanAllowed(span)) {
+                builder.removeSpan(span);
+            }
+        }
+
+        return builder;
+    }
+
     private boolean isSpanAllowed(Object span) {
         Class[] var2 = SPAN_WHITELIST;
         int var3 = var2.length;
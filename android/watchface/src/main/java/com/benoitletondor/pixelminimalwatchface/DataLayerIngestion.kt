@@ -0,0 +1,194 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface
+
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchface.model.Storage
+import com.google.android.gms.wearable.DataEvent
+import com.google.android.gms.wearable.DataEventBuffer
+import com.google.android.gms.wearable.DataItem
+import com.google.android.gms.wearable.DataMap
+import com.google.android.gms.wearable.DataMapItem
+import com.google.android.gms.wearable.MessageEvent
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+
+private const val DATA_KEY_PREMIUM = "premium"
+private const val DATA_KEY_BATTERY_STATUS_PERCENT = "/batterySync/batteryStatus"
+
+/**
+ * Decodes and validates Data Layer payloads on a background dispatcher, persists them and only
+ * forwards the resulting state changes through [onUpdate].
+ */
+class DataLayerIngestion(
+    scope: CoroutineScope,
+    private val storage: Storage,
+    private val onUpdate: (DataLayerUpdate) -> Unit,
+) {
+    private val inputChannel = Channel<RawDataLayerInput>(Channel.UNLIMITED)
+
+    // Only accessed from the single consumer coroutine
+    private var lastPhoneBatteryPercentage: Int? = null
+    private var lastPhoneBatteryCharging: Boolean? = null
+    private var lastPhoneBatteryForwardedTimestamp = 0L
+
+    init {
+        scope.launch(Dispatchers.Default) {
+            for (input in inputChannel) {
+                try {
+                    when(input) {
+                        is RawDataLayerInput.DataItemChanged -> decodeDataItem(input.dataItem)
+                        is RawDataLayerInput.MessageReceived -> decodeMessage(input.path, input.data)
+                    }
+                } catch (e: Exception) {
+                    Log.e(TAG, "Error handling Data Layer input", e)
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called from the listener callback: changed items are frozen so that they outlive the buffer.
+     */
+    fun onDataChanged(dataEvents: DataEventBuffer) {
+        for (event in dataEvents) {
+            if (event.type == DataEvent.TYPE_CHANGED) {
+                inputChannel.trySend(RawDataLayerInput.DataItemChanged(event.dataItem.freeze()))
+            }
+        }
+    }
+
+    fun onMessageReceived(messageEvent: MessageEvent) {
+        inputChannel.trySend(RawDataLayerInput.MessageReceived(messageEvent.path, messageEvent.data))
+    }
+
+    private fun decodeDataItem(dataItem: DataItem) {
+        val dataMap = DataMapItem.fromDataItem(dataItem).dataMap
+
+        when(dataItem.uri.path) {
+            "/premium" -> {
+                if (dataMap.containsKey(DATA_KEY_PREMIUM)) {
+                    onPremiumStatusReceived(dataMap.getBoolean(DATA_KEY_PREMIUM))?.let(onUpdate)
+                }
+            }
+            "/notifications" -> {
+                onUpdate(DataLayerUpdate.NotificationsData(dataMap))
+            }
+        }
+    }
+
+    private fun decodeMessage(path: String, data: ByteArray) {
+        if (path == StatusFrame.PATH) {
+            try {
+                onStatusFrameReceived(StatusFrame.decode(data))
+            } catch (t: Throwable) {
+                Log.e(TAG, "Error while parsing status frame from phone", t)
+            }
+        } else if (path == DATA_KEY_BATTERY_STATUS_PERCENT) {
+            try {
+                val phoneBatteryPercentage: Int = data[0].toInt()
+                if (phoneBatteryPercentage in 0..100) {
+                    onPhoneBatteryReceived(phoneBatteryPercentage, isCharging = null)?.let(onUpdate)
+                }
+            } catch (t: Throwable) {
+                Log.e(TAG, "Error while parsing phone battery percentage from phone", t)
+            }
+        } else if (path == DATA_KEY_PREMIUM) {
+            try {
+                onPremiumStatusReceived(data[0].toInt() == 1)?.let(onUpdate)
+            } catch (t: Throwable) {
+                Log.e(TAG, "Error while parsing premium status from phone", t)
+                onUpdate(DataLayerUpdate.PremiumStatusError)
+            }
+        }
+    }
+
+    /**
+     * Applies the battery and premium fields of the frame and forwards them as a single update.
+     *
+     * Sync status fields are replies to the settings screens queries, which apply them themselves:
+     * they are ignored here so that a frame can't overwrite a setting the user changed on the watch.
+     */
+    private fun onStatusFrameReceived(frame: StatusFrame) {
+        if (DEBUG_LOGS) Log.d(TAG, "onStatusFrameReceived: $frame")
+
+        val phoneBattery = frame.batteryPercent
+            ?.takeIf { it in 0..100 }
+            ?.let { onPhoneBatteryReceived(it, frame.isBatteryCharging) }
+        val premiumStatusChanged = frame.isPremium?.let { onPremiumStatusReceived(it) }
+
+        if (phoneBattery != null || premiumStatusChanged != null) {
+            onUpdate(DataLayerUpdate.PhoneStatus(
+                phoneBattery = phoneBattery,
+                premiumStatusChanged = premiumStatusChanged,
+            ))
+        }
+    }
+
+    private fun onPremiumStatusReceived(isPremium: Boolean): DataLayerUpdate.PremiumStatusChanged? {
+        val wasPremium = storage.isUserPremium()
+        if (wasPremium == isPremium) {
+            if (DEBUG_LOGS) Log.d(TAG, "onPremiumStatusReceived, ignoring unchanged value: $isPremium")
+            return null
+        }
+
+        storage.setUserPremium(isPremium)
+        return DataLayerUpdate.PremiumStatusChanged(wasPremium = wasPremium, isPremium = isPremium)
+    }
+
+    /**
+     * @param isCharging null when sent by a phone app that doesn't send it
+     */
+    private fun onPhoneBatteryReceived(phoneBatteryPercentage: Int, isCharging: Boolean?): DataLayerUpdate.PhoneBattery? {
+        val now = System.currentTimeMillis()
+
+        // The phone re-sends its level periodically, only forward repeats once in a while to keep the data fresh
+        if (phoneBatteryPercentage == lastPhoneBatteryPercentage &&
+            isCharging == lastPhoneBatteryCharging &&
+            now - lastPhoneBatteryForwardedTimestamp < SAME_PHONE_BATTERY_FORWARD_INTERVAL_MS) {
+            if (DEBUG_LOGS) Log.d(TAG, "onPhoneBatteryReceived, ignoring unchanged value: $phoneBatteryPercentage")
+            return null
+        }
+
+        lastPhoneBatteryPercentage = phoneBatteryPercentage
+        lastPhoneBatteryCharging = isCharging
+        lastPhoneBatteryForwardedTimestamp = now
+        return DataLayerUpdate.PhoneBattery(PhoneBatteryStatus.DataReceived(phoneBatteryPercentage, isCharging, now))
+    }
+
+    private sealed class RawDataLayerInput {
+        class DataItemChanged(val dataItem: DataItem) : RawDataLayerInput()
+        class MessageReceived(val path: String, val data: ByteArray) : RawDataLayerInput()
+    }
+
+    sealed class DataLayerUpdate {
+        data class PremiumStatusChanged(val wasPremium: Boolean, val isPremium: Boolean) : DataLayerUpdate()
+        object PremiumStatusError : DataLayerUpdate()
+        class PhoneBattery(val status: PhoneBatteryStatus.DataReceived) : DataLayerUpdate()
+        class NotificationsData(val dataMap: DataMap) : DataLayerUpdate()
+        class PhoneStatus(
+            val phoneBattery: PhoneBattery?,
+            val premiumStatusChanged: PremiumStatusChanged?,
+        ) : DataLayerUpdate()
+    }
+
+    companion object {
+        private const val TAG = "DataLayerIngestion"
+        private const val SAME_PHONE_BATTERY_FORWARD_INTERVAL_MS = 1000 * 60 * 10L
+    }
+}
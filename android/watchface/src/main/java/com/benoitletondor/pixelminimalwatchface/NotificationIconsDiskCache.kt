@@ -0,0 +1,185 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+
+/**
+ * Notification icons kept in the files dir across process restarts, as raw ALPHA_8 pixels.
+ * Least recently used icons are deleted once the total size exceeds [maxSizeBytes].
+ */
+class NotificationIconsDiskCache(
+    context: Context,
+    private val maxSizeBytes: Long = DEFAULT_MAX_SIZE_BYTES,
+) {
+    private val directory = File(context.filesDir, DIRECTORY_NAME)
+
+    // Icon id -> file size, in access order. Loaded lazily from the files last modified dates.
+    private var index: LinkedHashMap<Int, Long>? = null
+    private var totalSizeBytes = 0L
+
+    var hitCount = 0L
+        private set
+    var missCount = 0L
+        private set
+
+    @Synchronized
+    fun get(iconId: Int): Bitmap? {
+        val index = getIndex()
+        if (!index.containsKey(iconId)) {
+            missCount++
+            return null
+        }
+
+        val file = getFile(iconId)
+        val bitmap = try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                if (input.readInt() != FORMAT_VERSION) {
+                    throw IllegalStateException("Unknown format version")
+                }
+
+                val width = input.readShort().toInt()
+                val height = input.readShort().toInt()
+                val byteCount = input.readInt()
+
+                val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8)
+                if (bitmap.byteCount != byteCount) {
+                    bitmap.recycle()
+                    throw IllegalStateException("Unexpected byte count $byteCount for ${width}x$height")
+                }
+
+                val pixels = ByteArray(byteCount)
+                input.readFully(pixels)
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels))
+                bitmap
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while reading icon $iconId, removing it", e)
+            remove(iconId)
+            missCount++
+            return null
+        }
+
+        // containsKey doesn't count as an access, refresh the order and the file date to keep it after a restart
+        index.get(iconId)
+        file.setLastModified(System.currentTimeMillis())
+
+        hitCount++
+        if (DEBUG_LOGS) Log.d(TAG, "get, hit for $iconId (hits: $hitCount, misses: $missCount)")
+
+        return bitmap
+    }
+
+    @Synchronized
+    fun getIconIds(): Set<Int> = getIndex().keys.toSet()
+
+    @Synchronized
+    fun put(iconId: Int, bitmap: Bitmap) {
+        if (bitmap.config != Bitmap.Config.ALPHA_8) {
+            return
+        }
+
+        val index = getIndex()
+        val file = getFile(iconId)
+        try {
+            val pixels = ByteBuffer.allocate(bitmap.byteCount)
+            bitmap.copyPixelsToBuffer(pixels)
+
+            DataOutputStream(file.outputStream().buffered()).use { output ->
+                output.writeInt(FORMAT_VERSION)
+                output.writeShort(bitmap.width)
+                output.writeShort(bitmap.height)
+                output.writeInt(bitmap.byteCount)
+                output.write(pixels.array())
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while writing icon $iconId", e)
+            file.delete()
+            return
+        }
+
+        index.remove(iconId)?.let { totalSizeBytes -= it }
+        val size = file.length()
+        index[iconId] = size
+        totalSizeBytes += size
+
+        trimToSize(index)
+    }
+
+    private fun remove(iconId: Int) {
+        getIndex().remove(iconId)?.let { totalSizeBytes -= it }
+        getFile(iconId).delete()
+    }
+
+    private fun trimToSize(index: LinkedHashMap<Int, Long>) {
+        val iterator = index.entries.iterator()
+        while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+            val (iconId, size) = iterator.next()
+            iterator.remove()
+            totalSizeBytes -= size
+            getFile(iconId).delete()
+
+            if (DEBUG_LOGS) Log.d(TAG, "trimToSize, evicted $iconId")
+        }
+    }
+
+    private fun getIndex(): LinkedHashMap<Int, Long> = index ?: kotlin.run {
+        val newIndex = LinkedHashMap<Int, Long>(16, 0.75f, true)
+        totalSizeBytes = 0L
+
+        if (!directory.exists()) {
+            directory.mkdirs()
+        }
+
+        directory.listFiles()
+            ?.mapNotNull { file ->
+                val iconId = file.name.removeSuffix(FILE_EXTENSION).toIntOrNull()
+                if (iconId == null || !file.name.endsWith(FILE_EXTENSION)) {
+                    file.delete()
+                    return@mapNotNull null
+                }
+
+                iconId to file
+            }
+            ?.sortedBy { (_, file) -> file.lastModified() }
+            ?.forEach { (iconId, file) ->
+                val size = file.length()
+                newIndex[iconId] = size
+                totalSizeBytes += size
+            }
+
+        if (DEBUG_LOGS) Log.d(TAG, "getIndex, loaded ${newIndex.size} icons, $totalSizeBytes bytes")
+
+        index = newIndex
+        newIndex
+    }
+
+    private fun getFile(iconId: Int) = File(directory, "$iconId$FILE_EXTENSION")
+
+    companion object {
+        private const val TAG = "NotifIconsDiskCache"
+        private const val DIRECTORY_NAME = "notification_icons"
+        private const val FILE_EXTENSION = ".a8"
+        private const val FORMAT_VERSION = 1
+        private const val DEFAULT_MAX_SIZE_BYTES = 256 * 1024L
+    }
+}
@@ -21,7 +21,14 @@ sealed class PhoneBatteryStatus {
     object Unknown : PhoneBatteryStatus() {
         override fun isStale(currentTimestamp: Long): Boolean = true
     }
-    class DataReceived(val batteryPercentage: Int, private val timestamp: Long) : PhoneBatteryStatus() {
+    /**
+     * @param isCharging null if the phone app doesn't send it
+     */
+    class DataReceived(
+        val batteryPercentage: Int,
+        val isCharging: Boolean?,
+        private val timestamp: Long,
+    ) : PhoneBatteryStatus() {
         override fun isStale(currentTimestamp: Long): Boolean {
             return currentTimestamp - timestamp > STALE_PHONE_BATTERY_LIMIT_MS
         }
@@ -3,16 +3,27 @@ package com.benoitletondor.pixelminimalwatchface
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
+import android.os.SystemClock
 import android.util.Log
 import androidx.collection.LruCache
+import com.benoitletondor.pixelminimalwatchface.common.helper.dpToPx
+import com.benoitletondor.pixelminimalwatchface.drawer.digital.NotificationsDrawerImpl
 import com.benoitletondor.pixelminimalwatchface.helper.await
+import com.benoitletondor.pixelminimalwatchface.helper.findBestCompanionNode
+import com.benoitletondor.pixelminimalwatchface.helper.requestNotificationsIconsResend
 import com.google.android.gms.wearable.Asset
+import com.google.android.gms.wearable.CapabilityClient
 import com.google.android.gms.wearable.DataMap
+import com.google.android.gms.wearable.PutDataMapRequest
 import com.google.android.gms.wearable.Wearable
 import kotlinx.coroutines.*
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.DataInputStream
 import java.io.InputStream
+import java.util.zip.InflaterInputStream
 import java.util.*
 
 class PhoneNotifications(
@@ -20,55 +31,181 @@ class PhoneNotifications(
 ) {
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
 
-    private val iconIdsToBitmapCache = LruCache<Int, Bitmap>(10)
+    private val iconSizePx = context.dpToPx(NotificationsDrawerImpl.NOTIFICATION_ICON_SIZE_DP)
+    private val iconIdsToBitmapCache = object : LruCache<Int, Bitmap>(ICONS_CACHE_MAX_SIZE_BYTES) {
+        override fun sizeOf(key: Int, value: Bitmap): Int = value.allocationByteCount
+    }
+    private val iconsDiskCache = NotificationIconsDiskCache(context)
+    private var newDataJob: Job? = null
+    private var lastPublishedKnownIconIds: Set<Int>? = null
+    private var lastIconsResendRequestIconIds: List<Int>? = null
 
     private val notificationsMutableStateFlow = MutableStateFlow<NotificationState>(NotificationState.Unknown())
     val notificationsStateFlow: StateFlow<NotificationState> = notificationsMutableStateFlow
 
+    init {
+        scope.launch {
+            publishKnownIconIds()
+        }
+    }
+
     fun onDestroy() {
         scope.cancel()
     }
 
     fun onNewData(dataMap: DataMap) {
-        scope.launch {
+        // A newer DataMap makes in-flight fetches of the previous one useless
+        newDataJob?.cancel()
+        newDataJob = scope.launch {
             try {
                 if (DEBUG_LOGS) Log.d(TAG, "onNewData: $dataMap")
 
                 val iconIds = dataMap.getIntegerArrayList("iconIds") ?: throw IllegalArgumentException("Missing iconIds parameter")
-                val icons = mutableListOf<Bitmap>()
+                val hasMore = dataMap.getBoolean("hasMore")
+                val icons = arrayOfNulls<Bitmap>(iconIds.size)
+                val missingIconsIndexes = mutableListOf<Int>()
+
+                iconIds.forEachIndexed { index, iconId ->
+                    val cachedBitmap = iconIdsToBitmapCache.get(iconId) ?: iconsDiskCache.get(iconId)?.also { diskCachedBitmap ->
+                        iconIdsToBitmapCache.put(iconId, diskCachedBitmap)
+                    }
+
+                    if (cachedBitmap != null) {
+                        icons[index] = cachedBitmap
+                    } else {
+                        missingIconsIndexes.add(index)
+                    }
+                }
+
+                if (missingIconsIndexes.isNotEmpty()) {
+                    if (DEBUG_LOGS) Log.d(TAG, "onNewData: ${missingIconsIndexes.size} icons to fetch, publishing partial state")
+
+                    notificationsMutableStateFlow.value = NotificationState.DataReceived(
+                        icons = icons.toList(),
+                        hasMore = hasMore,
+                    )
+
+                    val iconsSheet = dataMap.getAsset(ICONS_SHEET_KEY)?.let { asset ->
+                        try {
+                            asset.toIconsSheet()
+                        } catch (e: Exception) {
+                            if (e is CancellationException) throw e
 
-                for(iconId in iconIds) {
-                    val existingBitmap = iconIdsToBitmapCache.get(iconId)
-                    if (existingBitmap != null) {
-                        icons.add(existingBitmap)
-                        continue
+                            Log.e(TAG, "Error while decoding icons sheet", e)
+                            null
+                        }
+                    } ?: emptyMap()
+
+                    val iconsToFetchIndexes = missingIconsIndexes.filter { index ->
+                        val sheetIcon = iconsSheet[iconIds[index]]
+                        icons[index] = sheetIcon
+                        sheetIcon == null
+                    }
+
+                    val fetchSemaphore = Semaphore(MAX_PARALLEL_ASSET_FETCHES)
+                    coroutineScope {
+                        iconsToFetchIndexes.map { index ->
+                            async {
+                                fetchSemaphore.withPermit {
+                                    icons[index] = fetchIcon(dataMap, iconIds[index])
+                                }
+                            }
+                        }.awaitAll()
                     }
 
-                    val asset = dataMap.getAsset("icon/$iconId") ?: throw IllegalArgumentException("Missing icon/$iconId asset")
-                    val bitmap = asset.toBitmap() ?: throw RuntimeException("Failed to decode icon/$iconId asset")
-                    iconIdsToBitmapCache.put(iconId, bitmap)
+                    publishKnownIconIds()
 
-                    icons.add(bitmap)
+                    // The phone skipped assets it thought we had (evicted since), ask for them once
+                    val iconIdsWithoutAsset = iconsToFetchIndexes
+                        .map { iconIds[it] }
+                        .filter { !dataMap.containsKey("icon/$it") }
+                    if (iconIdsWithoutAsset.isNotEmpty() && iconIdsWithoutAsset != lastIconsResendRequestIconIds) {
+                        lastIconsResendRequestIconIds = iconIdsWithoutAsset
+                        requestIconsResend()
+                    }
                 }
 
-                if (DEBUG_LOGS) Log.d(TAG, "dataReceived: ${icons.size} icons")
+                if (DEBUG_LOGS) Log.d(TAG, "dataReceived: ${icons.size} icons, disk cache hits: ${iconsDiskCache.hitCount}, misses: ${iconsDiskCache.missCount}")
                 notificationsMutableStateFlow.value = NotificationState.DataReceived(
-                    icons = icons,
-                    hasMore = dataMap.getBoolean("hasMore"),
+                    icons = icons.filterNotNull(),
+                    hasMore = hasMore,
                 )
             } catch (e: Exception) {
+                if (e is CancellationException) throw e
+
                 Log.e(TAG, "Error while parsing new data", e)
             }
         }
     }
 
+    /**
+     * Lets the phone know which icons don't need to be sent again.
+     */
+    private suspend fun publishKnownIconIds() {
+        try {
+            val knownIconIds = iconsDiskCache.getIconIds()
+            if (knownIconIds == lastPublishedKnownIconIds) {
+                return
+            }
+
+            val putDataRequest = PutDataMapRequest.create(KNOWN_ICONS_PATH).run {
+                dataMap.putInt(KNOWN_ICONS_KEY_VERSION, KNOWN_ICONS_PROTOCOL_VERSION)
+                dataMap.putIntegerArrayList(KNOWN_ICONS_KEY_ICON_IDS, ArrayList(knownIconIds))
+                asPutDataRequest()
+            }
+
+            Wearable.getDataClient(context).putDataItem(putDataRequest).await()
+            lastPublishedKnownIconIds = knownIconIds
+
+            if (DEBUG_LOGS) Log.d(TAG, "publishKnownIconIds: ${knownIconIds.size} icons")
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e(TAG, "Error while publishing known icon ids", e)
+        }
+    }
+
+    private suspend fun requestIconsResend() {
+        try {
+            val capabilityInfo = withTimeout(5000) {
+                Wearable.getCapabilityClient(context).getCapability(BuildConfig.COMPANION_APP_CAPABILITY, CapabilityClient.FILTER_REACHABLE).await()
+            }
+
+            if (DEBUG_LOGS) Log.d(TAG, "requestIconsResend")
+            capabilityInfo.nodes.findBestCompanionNode()?.requestNotificationsIconsResend(context)
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e(TAG, "Error while requesting icons resend", e)
+        }
+    }
+
+    private suspend fun fetchIcon(dataMap: DataMap, iconId: Int): Bitmap? {
+        return try {
+            val asset = dataMap.getAsset("icon/$iconId") ?: throw IllegalArgumentException("Missing icon/$iconId asset")
+            val bitmap = asset.toBitmap() ?: throw RuntimeException("Failed to decode icon/$iconId asset")
+            iconIdsToBitmapCache.put(iconId, bitmap)
+            iconsDiskCache.put(iconId, bitmap)
+
+            bitmap
+        } catch (e: Exception) {
+            if (e is CancellationException) throw e
+
+            Log.e(TAG, "Error while fetching icon $iconId", e)
+            null
+        }
+    }
+
     sealed class NotificationState {
         class Unknown(private val createdAt: Date = Date()) : NotificationState() {
             fun isStale(currentTimestamp: Long): Boolean = currentTimestamp - createdAt.time > STALE_LIMIT_MS
         }
 
+        /**
+         * @param icons null entries are placeholders for icons still being fetched
+         */
         class DataReceived(
-            val icons: List<Bitmap>,
+            val icons: List<Bitmap?>,
             val hasMore: Boolean,
         ) : NotificationState()
 
@@ -77,18 +214,116 @@ class PhoneNotifications(
         }
     }
 
-    private suspend fun Asset.toBitmap(): Bitmap? {
+    private suspend fun Asset.readBytes(): ByteArray? {
         val assetInputStream: InputStream? = Wearable.getDataClient(context).getFdForAsset(this).await().inputStream
 
-        return assetInputStream?.let { inputStream ->
-            BitmapFactory.decodeStream(inputStream)
+        return assetInputStream?.use { inputStream ->
+            inputStream.readBytes()
         } ?: run {
             Log.e(TAG, "Requested an unknown Asset.")
             null
         }
     }
 
+    /**
+     * Decodes the asset to an ALPHA_8 bitmap of the drawn icon size: icons are always tinted at
+     * draw time so only their alpha channel is needed.
+     */
+    private suspend fun Asset.toBitmap(): Bitmap? {
+        val bytes = readBytes() ?: return null
+        val decodeStartTs = SystemClock.elapsedRealtime()
+
+        val boundsOptions = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.size, boundsOptions)
+        if (boundsOptions.outWidth <= 0 || boundsOptions.outHeight <= 0) {
+            return null
+        }
+
+        var sampleSize = 1
+        while (boundsOptions.outWidth / (sampleSize * 2) >= iconSizePx && boundsOptions.outHeight / (sampleSize * 2) >= iconSizePx) {
+            sampleSize *= 2
+        }
+
+        val sampledBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.size, BitmapFactory.Options().apply {
+            inSampleSize = sampleSize
+        }) ?: return null
+
+        val alphaBitmap = sampledBitmap.toIconBitmap()
+
+        if (DEBUG_LOGS) Log.d(TAG, "decoded ${boundsOptions.outWidth}x${boundsOptions.outHeight} icon to ${alphaBitmap.width}x${alphaBitmap.height} (sample $sampleSize) from ${bytes.size} bytes in ${SystemClock.elapsedRealtime() - decodeStartTs}ms")
+
+        return alphaBitmap
+    }
+
+    /**
+     * Decodes an icons sheet: version (byte), icon size (short), icons count (byte), icon ids (int each),
+     * then each icon alpha bytes row by row, the whole being deflated. Decoded icons are cached.
+     */
+    private suspend fun Asset.toIconsSheet(): Map<Int, Bitmap> {
+        val bytes = readBytes() ?: return emptyMap()
+        val decodeStartTs = SystemClock.elapsedRealtime()
+
+        val icons = HashMap<Int, Bitmap>()
+        DataInputStream(InflaterInputStream(bytes.inputStream())).use { input ->
+            val version = input.readUnsignedByte()
+            if (version != ICONS_SHEET_VERSION) {
+                throw IllegalArgumentException("Unsupported icons sheet version: $version")
+            }
+
+            val sheetIconSize = input.readUnsignedShort()
+            val iconsCount = input.readUnsignedByte()
+            val iconIds = IntArray(iconsCount) { input.readInt() }
+
+            val alpha = ByteArray(sheetIconSize * sheetIconSize)
+            val pixels = IntArray(alpha.size)
+            for (iconId in iconIds) {
+                input.readFully(alpha)
+                for (i in alpha.indices) {
+                    pixels[i] = (alpha[i].toInt() and 0xFF) shl 24
+                }
+
+                val bitmap = Bitmap.createBitmap(pixels, sheetIconSize, sheetIconSize, Bitmap.Config.ARGB_8888).toIconBitmap()
+                iconIdsToBitmapCache.put(iconId, bitmap)
+                iconsDiskCache.put(iconId, bitmap)
+                icons[iconId] = bitmap
+            }
+        }
+
+        if (DEBUG_LOGS) Log.d(TAG, "decoded icons sheet of ${bytes.size} bytes to ${icons.size} icons in ${SystemClock.elapsedRealtime() - decodeStartTs}ms")
+
+        return icons
+    }
+
+    /**
+     * Scales to the drawn icon size and keeps only the alpha channel: icons are always tinted at
+     * draw time. Recycles the receiver.
+     */
+    private fun Bitmap.toIconBitmap(): Bitmap {
+        val scaledBitmap = if (width != iconSizePx || height != iconSizePx) {
+            Bitmap.createScaledBitmap(this, iconSizePx, iconSizePx, true)
+        } else {
+            this
+        }
+
+        val alphaBitmap = scaledBitmap.extractAlpha()
+        if (scaledBitmap !== this) {
+            scaledBitmap.recycle()
+        }
+        recycle()
+
+        return alphaBitmap
+    }
+
     companion object {
         private const val TAG = "PhoneNotifications"
+        private const val ICONS_CACHE_MAX_SIZE_BYTES = 64 * 1024
+        private const val MAX_PARALLEL_ASSET_FETCHES = 3
+        private const val KNOWN_ICONS_PATH = "/notifications/knownIcons"
+        private const val KNOWN_ICONS_KEY_VERSION = "version"
+        private const val KNOWN_ICONS_KEY_ICON_IDS = "iconIds"
+        // 2: icons can be sent as an icons sheet
+        private const val KNOWN_ICONS_PROTOCOL_VERSION = 2
+        private const val ICONS_SHEET_KEY = "iconsSheet"
+        private const val ICONS_SHEET_VERSION = 1
     }
 }
\ No newline at end of file
@@ -22,10 +22,10 @@ import android.content.Intent.FLAG_ACTIVITY_NEW_TASK
 import android.graphics.Canvas
 import android.graphics.Rect
 import android.graphics.drawable.Drawable
-import android.os.BatteryManager
 import android.os.Build
 import android.os.Bundle
 import android.os.PowerManager
+import android.os.SystemClock
 import android.support.wearable.complications.*
 import android.support.wearable.watchface.CanvasWatchFaceService
 import android.support.wearable.watchface.WatchFaceService
@@ -43,13 +43,17 @@ import com.benoitletondor.pixelminimalwatchface.drawer.digital.regular.RegularDi
 import com.benoitletondor.pixelminimalwatchface.helper.*
 import com.benoitletondor.pixelminimalwatchface.model.ComplicationColors
 import com.benoitletondor.pixelminimalwatchface.model.ComplicationLocation
+import com.benoitletondor.pixelminimalwatchface.model.ComplicationProviderKey
+import com.benoitletondor.pixelminimalwatchface.model.ComplicationProvidersCache
 import com.benoitletondor.pixelminimalwatchface.model.DEFAULT_APP_VERSION
 import com.benoitletondor.pixelminimalwatchface.model.Storage
+import com.benoitletondor.pixelminimalwatchface.model.toProviderKey
 import com.benoitletondor.pixelminimalwatchface.rating.FeedbackActivity
 import com.benoitletondor.pixelminimalwatchface.settings.notificationssync.NotificationsSyncConfigurationActivity
 import com.benoitletondor.pixelminimalwatchface.settings.phonebattery.*
 import com.google.android.gms.wearable.*
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.*
 import java.lang.ref.WeakReference
 import java.time.LocalDateTime
@@ -58,11 +62,10 @@ import java.util.concurrent.Executors
 import kotlin.math.max
 
 const val MISC_NOTIFICATION_CHANNEL_ID = "rating"
-private const val DATA_KEY_PREMIUM = "premium"
-private const val DATA_KEY_BATTERY_STATUS_PERCENT = "/batterySync/batteryStatus"
 private const val THREE_DAYS_MS: Long = 1000 * 60 * 60 * 24 * 3L
 private const val THIRTY_MINS_MS: Long = 1000 * 60 * 30L
 private const val MINIMUM_COMPLICATION_UPDATE_INTERVAL_MS = 1000L
+private const val MINIMUM_PROVIDERS_RETRIEVAL_INTERVAL_MS = 1000 * 60L
 val DEBUG_LOGS = BuildConfig.DEBUG
 private const val TAG = "PixelMinimalWatchFace"
 
@@ -92,7 +95,9 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
         private lateinit var watchFaceDrawer: WatchFaceDrawer
 
         private val complicationProviderInfoRetriever = ProviderInfoRetriever(this@PixelMinimalWatchFace, Executors.newSingleThreadExecutor())
-        private val complicationProviderSparseArray: SparseArray<ComplicationProviderInfo> = SparseArray(COMPLICATION_IDS.size)
+        private val complicationProviderSparseArray: SparseArray<ComplicationProviderKey> = SparseArray(COMPLICATION_IDS.size)
+        private var isRetrievingComplicationProvidersInfo = false
+        private var lastComplicationProvidersRetrievalTimestamp = 0L
         private var complicationsColors: ComplicationColors = storage.getComplicationColors()
         private var showComplicationColorsInAmbient: Boolean = storage.showColorsInAmbientMode()
         private val rawComplicationDataSparseArray: SparseArray<ComplicationData> = SparseArray(COMPLICATION_IDS.size)
@@ -105,26 +110,32 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
         private var visible = false
 
         private val timeDependentUpdateHandler = ComplicationTimeDependentUpdateHandler(WeakReference(this))
+        private val invalidationCoalescer = ComplicationInvalidationCoalescer(WeakReference(this))
+        private val eventLoop = EngineEventLoop()
+        private val dataLayerIngestion = DataLayerIngestion(this, storage) { update ->
+            eventLoop.send { onDataLayerUpdate(update) }
+        }
         private val timeDependentTexts = SparseArray<ComplicationText>()
 
         private var useAndroid12Style = storage.useAndroid12Style()
 
         private var shouldShowWeather = false
         private var shouldShowBattery = false
-        private var didForceGalaxyWatch4BatterySubscription = false
         private var weatherComplicationData: ComplicationData? = null
-        private var batteryComplicationData: ComplicationData? = null
 
         private var lastTapEventTimestamp: Long = 0
 
         private var lastPhoneSyncRequestTimestamp: Long? = null
         private var phoneBatteryStatus: PhoneBatteryStatus = PhoneBatteryStatus.Unknown
-        private var lastWatchBatteryStatus: WatchBatteryStatus = WatchBatteryStatus.Unknown
 
-        private var lastGalaxyWatch4CalendarWidgetForcedRefreshTs: Long? = null
         private val calendarBuggyComplicationsIds = mutableSetOf<Int>()
+        private var calendarNextEventWatcherJob: Job? = null
+        private val calendarNextEventRefreshRequests = MutableSharedFlow<Unit>(extraBufferCapacity = 1, onBufferOverflow = BufferOverflow.DROP_OLDEST)
+        private var samsungNextCalendarEvent: CalendarEvent? = null
+        private var samsungNextCalendarEventRefreshTimestamp: Long? = null
 
         private val galaxyWatch4HeartRateComplicationsIds = MutableStateFlow<Set<Int>>(emptySet())
+        private val galaxyWatch4HeartRateWatchingAllowed = MutableStateFlow(false)
         private var galaxyWatch4HeartRateWatcherJob: Job? = null
 
         private var screenWidth = -1
@@ -132,6 +143,7 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
         private var windowInsets: WindowInsets? = null
 
         private lateinit var phoneNotifications: PhoneNotifications
+        private lateinit var watchBatterySource: WatchBatterySource
 
         private var lastScreenOnTimeMs: Long = System.currentTimeMillis()
 
@@ -142,6 +154,19 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             }
         }
 
+        private val packageChangesReceiver = object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                val packageName = intent.data?.schemeSpecificPart
+                if (DEBUG_LOGS) Log.d(TAG, "packageChangesReceiver, ${intent.action} for $packageName")
+
+                onPackageChangedInvalidateSamsungProvidersCache(packageName)
+                onPackageChangedInvalidateWeatherProviderCache(packageName)
+
+                // Providers may have been added or removed, retrieve them again next time
+                storage.setComplicationProvidersCache(null)
+            }
+        }
+
         override fun onCreate(holder: SurfaceHolder) {
             super.onCreate(holder)
 
@@ -155,14 +180,36 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
 
             calendar = Calendar.getInstance()
             phoneNotifications = PhoneNotifications(this@PixelMinimalWatchFace)
+            watchBatterySource = WatchBatterySource(service)
 
             initWatchFaceDrawer()
 
             Wearable.getDataClient(service).addListener(this)
             Wearable.getMessageClient(service).addListener(this)
+            service.registerReceiver(packageChangesReceiver, IntentFilter().apply {
+                addAction(Intent.ACTION_PACKAGE_ADDED)
+                addAction(Intent.ACTION_PACKAGE_REPLACED)
+                addAction(Intent.ACTION_PACKAGE_REMOVED)
+                addDataScheme("package")
+            })
             syncPhoneBatteryStatus()
             syncNotificationsDisplayStatus()
             complicationProviderInfoRetriever.init()
+
+            launch(Dispatchers.IO) {
+                refreshWeatherProviderInfo()
+            }
+
+            launch {
+                watchBatterySource.batteryStatusFlow
+                    .collect {
+                        eventLoop.send {
+                            if (shouldShowBattery) {
+                                invalidationCoalescer.requestInvalidate()
+                            }
+                        }
+                    }
+            }
         }
 
         private fun initWatchFaceDrawer() {
@@ -192,13 +239,13 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             if (DEBUG_LOGS) Log.d(TAG, "initializeComplications, activeComplicationIds: $activeComplicationIds")
 
             calendarBuggyComplicationsIds.clear()
+            onCalendarBuggyComplicationRemoved()
             galaxyWatch4HeartRateComplicationsIds.value = emptySet()
             onGalaxyWatch4HeartRateComplicationRemoved()
             shouldShowWeather = false
             shouldShowBattery = false
-            didForceGalaxyWatch4BatterySubscription = false
 
-            setActiveComplications(*activeComplicationIds.plus(WEATHER_COMPLICATION_ID).plus(BATTERY_COMPLICATION_ID))
+            setActiveComplications(*activeComplicationIds.plus(WEATHER_COMPLICATION_ID))
 
             watchFaceDrawer.onComplicationColorsUpdate(complicationsColors, complicationDataSparseArray, storage.showColorsInAmbientMode())
 
@@ -206,61 +253,52 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
         }
 
         private fun updateComplicationProvidersInfoAsync() {
+            val cache = storage.getComplicationProvidersCache()
+            if (cache != null && !cache.isExpired(System.currentTimeMillis()) && COMPLICATION_IDS.all { cache.providers.containsKey(it) }) {
+                if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, using cached data")
+
+                lastComplicationProvidersRetrievalTimestamp = SystemClock.elapsedRealtime()
+
+                for (complicationId in COMPLICATION_IDS) {
+                    onComplicationProviderInfoReceived(complicationId, cache.providers[complicationId])
+                }
+                return
+            }
+
+            if (isRetrievingComplicationProvidersInfo) {
+                if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, already requesting data")
+                return
+            }
+
             if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, requesting data")
 
+            isRetrievingComplicationProvidersInfo = true
+            lastComplicationProvidersRetrievalTimestamp = SystemClock.elapsedRealtime()
+            val retrievedProviders = HashMap<Int, ComplicationProviderKey?>(COMPLICATION_IDS.size)
             complicationProviderInfoRetriever.retrieveProviderInfo(
                 object : ProviderInfoRetriever.OnProviderInfoReceivedCallback() {
                     override fun onProviderInfoReceived(watchFaceComplicationId: Int, complicationProviderInfo: ComplicationProviderInfo?) {
                         if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, watchFaceComplicationId: $watchFaceComplicationId -> provider: $complicationProviderInfo")
 
-                        val currentValue = complicationProviderSparseArray.get(watchFaceComplicationId, null)
-
-                        if(complicationProviderInfo != null) {
-                            complicationProviderSparseArray.put(watchFaceComplicationId, complicationProviderInfo)
-                        } else {
-                            complicationProviderSparseArray.remove(watchFaceComplicationId)
-                        }
-
-                        val isCalendarBuggyComplication = complicationProviderInfo?.isSamsungCalendarBuggyProvider() == true
-                        if (isCalendarBuggyComplication) {
-                            if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, buggy calendar complication detected, id: $watchFaceComplicationId")
-                            calendarBuggyComplicationsIds.add(watchFaceComplicationId)
-                        } else {
-                            calendarBuggyComplicationsIds.remove(watchFaceComplicationId)
-                        }
-
-                        val currentHRComplicationIds = galaxyWatch4HeartRateComplicationsIds.value
-                        val hasGW4HRComplication = currentHRComplicationIds.isNotEmpty()
-                        val isGalaxyWatch4HeartRateComplication = complicationProviderInfo?.isSamsungHeartRateProvider() == true
-                        if (isGalaxyWatch4HeartRateComplication) {
-                            if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, GW4 HR complication detected, id: $watchFaceComplicationId")
-                            galaxyWatch4HeartRateComplicationsIds.value = HashSet(currentHRComplicationIds).apply {
-                                add(watchFaceComplicationId)
-                            }
-
-                            if (!hasGW4HRComplication && galaxyWatch4HeartRateComplicationsIds.value.isNotEmpty()) {
-                                onGalaxyWatch4HeartRateComplicationAdded()
-                            }
-                        } else {
-                            galaxyWatch4HeartRateComplicationsIds.value = HashSet(currentHRComplicationIds).apply {
-                                remove(watchFaceComplicationId)
-                            }
-
-                            if (hasGW4HRComplication && galaxyWatch4HeartRateComplicationsIds.value.isEmpty()) {
-                                onGalaxyWatch4HeartRateComplicationRemoved()
+                        val providerKey = complicationProviderInfo?.toProviderKey()
+                        eventLoop.send {
+                            onComplicationProviderInfoReceived(watchFaceComplicationId, providerKey)
+
+                            retrievedProviders[watchFaceComplicationId] = providerKey
+                            if (retrievedProviders.size == COMPLICATION_IDS.size) {
+                                isRetrievingComplicationProvidersInfo = false
+                                storage.setComplicationProvidersCache(ComplicationProvidersCache(
+                                    retrievalTimestamp = System.currentTimeMillis(),
+                                    providers = retrievedProviders,
+                                ))
                             }
                         }
+                    }
 
-                        if (currentValue?.toString() != complicationProviderInfo?.toString()) {
-                            if (DEBUG_LOGS) Log.d(TAG, "updateComplicationProvidersInfoAsync, updating data from complicationId: $watchFaceComplicationId")
-
-                            onComplicationDataUpdate(
-                                watchFaceComplicationId,
-                                rawComplicationDataSparseArray.get(
-                                    watchFaceComplicationId,
-                                    ComplicationData.Builder(ComplicationData.TYPE_EMPTY).build(),
-                                )
-                            )
+                    override fun onRetrievalFailed() {
+                        Log.e(TAG, "updateComplicationProvidersInfoAsync, retrieval failed")
+                        eventLoop.send {
+                            isRetrievingComplicationProvidersInfo = false
                         }
                     }
                 },
@@ -269,34 +307,159 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             )
         }
 
+        /**
+         * The provider may have been changed from the system complication editor, which doesn't go through
+         * settings: retrieve providers again when the data doesn't match the cached one so that Samsung
+         * workarounds don't use a wrong provider until the cache expires.
+         */
+        private fun invalidateComplicationProviderIfChanged(watchFaceComplicationId: Int, complicationData: ComplicationData) {
+            val providerKey = complicationProviderSparseArray.get(watchFaceComplicationId, null)
+            val providerChanged = when(complicationData.type) {
+                // Transient states or nothing to show right now, they don't tell anything about the provider
+                ComplicationData.TYPE_NO_DATA, ComplicationData.TYPE_NO_PERMISSION, ComplicationData.TYPE_EMPTY -> false
+                ComplicationData.TYPE_NOT_CONFIGURED -> providerKey != null
+                else -> providerKey == null || providerKey.complicationType != complicationData.type
+            }
+
+            // Providers just retrieved are the current ones even if they send another type, don't loop retrieving them
+            if (!providerChanged ||
+                SystemClock.elapsedRealtime() - lastComplicationProvidersRetrievalTimestamp < MINIMUM_PROVIDERS_RETRIEVAL_INTERVAL_MS) {
+                return
+            }
+
+            if (DEBUG_LOGS) Log.d(TAG, "invalidateComplicationProviderIfChanged, provider changed for $watchFaceComplicationId: $providerKey, data type: ${complicationData.type}")
+
+            storage.setComplicationProvidersCache(null)
+            updateComplicationProvidersInfoAsync()
+        }
+
+        private fun onComplicationProviderInfoReceived(watchFaceComplicationId: Int, providerKey: ComplicationProviderKey?) {
+            val currentValue = complicationProviderSparseArray.get(watchFaceComplicationId, null)
+
+            if(providerKey != null) {
+                complicationProviderSparseArray.put(watchFaceComplicationId, providerKey)
+            } else {
+                complicationProviderSparseArray.remove(watchFaceComplicationId)
+            }
+
+            val hadCalendarBuggyComplication = calendarBuggyComplicationsIds.isNotEmpty()
+            val isCalendarBuggyComplication = providerKey?.isSamsungCalendarBuggyProvider() == true
+            if (isCalendarBuggyComplication) {
+                if (DEBUG_LOGS) Log.d(TAG, "onComplicationProviderInfoReceived, buggy calendar complication detected, id: $watchFaceComplicationId")
+                calendarBuggyComplicationsIds.add(watchFaceComplicationId)
+
+                if (!hadCalendarBuggyComplication) {
+                    onCalendarBuggyComplicationAdded()
+                }
+            } else {
+                calendarBuggyComplicationsIds.remove(watchFaceComplicationId)
+
+                if (hadCalendarBuggyComplication && calendarBuggyComplicationsIds.isEmpty()) {
+                    onCalendarBuggyComplicationRemoved()
+                }
+            }
+
+            val currentHRComplicationIds = galaxyWatch4HeartRateComplicationsIds.value
+            val hasGW4HRComplication = currentHRComplicationIds.isNotEmpty()
+            val isGalaxyWatch4HeartRateComplication = providerKey?.isSamsungHeartRateProvider() == true
+            if (isGalaxyWatch4HeartRateComplication) {
+                if (DEBUG_LOGS) Log.d(TAG, "onComplicationProviderInfoReceived, GW4 HR complication detected, id: $watchFaceComplicationId")
+                galaxyWatch4HeartRateComplicationsIds.value = HashSet(currentHRComplicationIds).apply {
+                    add(watchFaceComplicationId)
+                }
+
+                if (!hasGW4HRComplication && galaxyWatch4HeartRateComplicationsIds.value.isNotEmpty()) {
+                    onGalaxyWatch4HeartRateComplicationAdded()
+                }
+            } else {
+                galaxyWatch4HeartRateComplicationsIds.value = HashSet(currentHRComplicationIds).apply {
+                    remove(watchFaceComplicationId)
+                }
+
+                if (hasGW4HRComplication && galaxyWatch4HeartRateComplicationsIds.value.isEmpty()) {
+                    onGalaxyWatch4HeartRateComplicationRemoved()
+                }
+            }
+
+            if (currentValue != providerKey) {
+                if (DEBUG_LOGS) Log.d(TAG, "onComplicationProviderInfoReceived, updating data from complicationId: $watchFaceComplicationId")
+
+                applyComplicationData(
+                    watchFaceComplicationId,
+                    rawComplicationDataSparseArray.get(
+                        watchFaceComplicationId,
+                        ComplicationData.Builder(ComplicationData.TYPE_EMPTY).build(),
+                    )
+                )
+            }
+        }
+
         private fun onGalaxyWatch4HeartRateComplicationAdded() {
             if (DEBUG_LOGS) Log.d(TAG, "onGalaxyWatch4HeartRateComplicationAdded")
 
             galaxyWatch4HeartRateWatcherJob?.cancel()
             galaxyWatch4HeartRateWatcherJob = launch {
-                galaxyWatch4HeartRateComplicationsIds
+                combine(galaxyWatch4HeartRateComplicationsIds, galaxyWatch4HeartRateWatchingAllowed) { complicationIds, watchingAllowed ->
+                    if (watchingAllowed) { complicationIds } else { emptySet() }
+                }
                     .flatMapLatest { complicationIds ->
-                        this@PixelMinimalWatchFace.watchSamsungHeartRateUpdates()
+                        if (complicationIds.isEmpty()) {
+                            if (DEBUG_LOGS) Log.d(TAG, "galaxyWatch4HeartRateWatcher, paused")
+                            return@flatMapLatest emptyFlow()
+                        }
+
+                        this@PixelMinimalWatchFace.watchSamsungHeartRateData(HEART_RATE_MIN_UPDATE_INTERVAL_MS)
                             .map { complicationIds }
                     }
                     .collect { complicationIds ->
                         if (DEBUG_LOGS) Log.d(TAG, "galaxyWatch4HeartRateWatcher, new value received")
 
-                        for(complicationId in complicationIds) {
-                            if (DEBUG_LOGS) Log.d(TAG, "galaxyWatch4HeartRateWatcher, refreshing for complication $complicationId")
+                        eventLoop.send {
+                            for(complicationId in complicationIds) {
+                                if (DEBUG_LOGS) Log.d(TAG, "galaxyWatch4HeartRateWatcher, refreshing for complication $complicationId")
 
-                            onComplicationDataUpdate(
-                                complicationId,
-                                rawComplicationDataSparseArray.get(
+                                applyComplicationData(
                                     complicationId,
-                                    ComplicationData.Builder(ComplicationData.TYPE_EMPTY).build(),
+                                    rawComplicationDataSparseArray.get(
+                                        complicationId,
+                                        ComplicationData.Builder(ComplicationData.TYPE_EMPTY).build(),
+                                    )
                                 )
-                            )
+                            }
+                        }
+                    }
+            }
+        }
+
+        private fun onCalendarBuggyComplicationAdded() {
+            if (DEBUG_LOGS) Log.d(TAG, "onCalendarBuggyComplicationAdded")
+
+            calendarNextEventWatcherJob?.cancel()
+            calendarNextEventWatcherJob = launch {
+                this@PixelMinimalWatchFace.watchSamsungCalendarNextEvent(calendarNextEventRefreshRequests)
+                    .collect { nextEvent ->
+                        eventLoop.send {
+                            if (calendarBuggyComplicationsIds.isEmpty()) {
+                                return@send
+                            }
+
+                            samsungNextCalendarEvent = nextEvent
+                            samsungNextCalendarEventRefreshTimestamp = nextEvent.getNextRefreshTimestamp(System.currentTimeMillis())
+                            forceCalendarWidgetRefresh()
                         }
                     }
             }
         }
 
+        private fun onCalendarBuggyComplicationRemoved() {
+            if (DEBUG_LOGS) Log.d(TAG, "onCalendarBuggyComplicationRemoved")
+
+            calendarNextEventWatcherJob?.cancel()
+            calendarNextEventWatcherJob = null
+            samsungNextCalendarEvent = null
+            samsungNextCalendarEventRefreshTimestamp = null
+        }
+
         private fun onGalaxyWatch4HeartRateComplicationRemoved() {
             if (DEBUG_LOGS) Log.d(TAG, "onGalaxyWatch4HeartRateComplicationRemoved")
 
@@ -325,36 +488,21 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             )
         }
 
-        private fun subscribeToBatteryComplicationData() {
-            if (DEBUG_LOGS) Log.d(TAG, "subscribeToBatteryComplicationData")
-
-            setDefaultSystemComplicationProvider(
-                BATTERY_COMPLICATION_ID,
-                SystemProviders.WATCH_BATTERY,
-                ComplicationData.TYPE_SHORT_TEXT
-            )
-        }
-
-        private fun unsubscribeToBatteryComplicationData() {
-            if (DEBUG_LOGS) Log.d(TAG, "unsubscribeToBatteryComplicationData")
-
-            setDefaultComplicationProvider(
-                BATTERY_COMPLICATION_ID,
-                null,
-                ComplicationData.TYPE_EMPTY
-            )
-        }
-
         override fun onDestroy() {
             if (DEBUG_LOGS) Log.d(TAG, "onDestroy")
 
             unregisterReceiver()
+            service.unregisterReceiver(packageChangesReceiver)
             onGalaxyWatch4HeartRateComplicationRemoved()
+            onCalendarBuggyComplicationRemoved()
             Wearable.getDataClient(service).removeListener(this)
             Wearable.getMessageClient(service).removeListener(this)
             timeDependentUpdateHandler.cancelUpdate()
+            invalidationCoalescer.release()
+            eventLoop.release()
             complicationProviderInfoRetriever.release()
             phoneNotifications.onDestroy()
+            watchBatterySource.stop()
             cancel()
 
             super.onDestroy()
@@ -410,16 +558,11 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
                 syncPhoneBatteryStatus()
             }
 
-            val lastWatchBatteryStatus = lastWatchBatteryStatus
-            if (hasWidgetFrozenBug &&
-                lastWatchBatteryStatus is WatchBatteryStatus.DataReceived) {
-                ensureBatteryDataIsUpToDateOrReload(lastWatchBatteryStatus)
-            }
-
-            val lastGalaxyWatch4CalendarWidgetForcedRefreshTs = lastGalaxyWatch4CalendarWidgetForcedRefreshTs
-            if (calendarBuggyComplicationsIds.isNotEmpty() &&
-                (lastGalaxyWatch4CalendarWidgetForcedRefreshTs == null || System.currentTimeMillis() - lastGalaxyWatch4CalendarWidgetForcedRefreshTs >= HALF_HOUR_MS)) {
-                forceCalendarWidgetRefresh()
+            // The watcher delays don't run while dozing, use the wall clock to refresh the next event in ambient
+            val calendarNextEventRefreshTimestamp = samsungNextCalendarEventRefreshTimestamp
+            if (calendarNextEventRefreshTimestamp != null && System.currentTimeMillis() >= calendarNextEventRefreshTimestamp) {
+                samsungNextCalendarEventRefreshTimestamp = null
+                calendarNextEventRefreshRequests.tryEmit(Unit)
             }
 
             invalidate()
@@ -496,51 +639,16 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
         }
 
         private fun forceCalendarWidgetRefresh() {
-            this.lastGalaxyWatch4CalendarWidgetForcedRefreshTs = System.currentTimeMillis()
-
             if (DEBUG_LOGS) Log.w(TAG, "Forcing a complication refresh for calendar refresh")
 
             for(id in calendarBuggyComplicationsIds) {
                 rawComplicationDataSparseArray.get(id, null)?.let { complicationData ->
-                    onComplicationDataUpdate(id, complicationData)
+                    applyComplicationData(id, complicationData)
                 }
             }
         }
         // ------------------------------------
 
-        private fun ensureBatteryDataIsUpToDateOrReload(lastWatchBatteryStatus: WatchBatteryStatus.DataReceived) {
-            if (DEBUG_LOGS) Log.d(TAG, "ensureBatteryDataIsUpToDateOrReload comparing $lastWatchBatteryStatus")
-
-            try {
-                val filter = IntentFilter(Intent.ACTION_BATTERY_CHANGED)
-                val maybeBatteryStatus = registerReceiver(null, filter)
-                val maybeCurrentBatteryPercentage = maybeBatteryStatus?.let { intent ->
-                    val level: Int = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1)
-                    val scale: Int = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1)
-                    level * 100 / scale.toFloat()
-                }?.toInt()
-
-                if (DEBUG_LOGS) Log.d(TAG, "ensureBatteryDataIsUpToDateOrReload current value $maybeCurrentBatteryPercentage")
-
-                if (maybeCurrentBatteryPercentage != null &&
-                    maybeCurrentBatteryPercentage != lastWatchBatteryStatus.batteryPercentage) {
-
-                    if (lastWatchBatteryStatus.shouldRefresh(maybeCurrentBatteryPercentage)) {
-                        this.lastWatchBatteryStatus = WatchBatteryStatus.Unknown
-
-                        if (DEBUG_LOGS) Log.d(TAG, "ensureBatteryDataIsUpToDateOrReload, refreshing")
-
-                        initWatchFaceDrawer()
-                    } else {
-                        if (DEBUG_LOGS) Log.d(TAG, "ensureBatteryDataIsUpToDateOrReload ignoring cause not stale yet")
-                        lastWatchBatteryStatus.markAsStale()
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "ensureBatteryDataIsUpToDateOrReload: Error while comparing data", e)
-            }
-        }
-
         override fun onAmbientModeChanged(inAmbient: Boolean) {
             super.onAmbientModeChanged(inAmbient)
 
@@ -553,6 +661,7 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             }
 
             ambient = inAmbient
+            updateGalaxyWatch4HeartRateWatchingAllowed()
 
             invalidate()
         }
@@ -592,47 +701,26 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
 
             if (DEBUG_LOGS) Log.d(TAG, "onComplicationDataUpdate, watchFaceComplicationId: $watchFaceComplicationId, complicationData: $complicationData")
 
-            if( watchFaceComplicationId == WEATHER_COMPLICATION_ID ) {
-                if (DEBUG_LOGS) Log.d(TAG, "onComplicationDataUpdate, weatherComplicationData")
-
-                weatherComplicationData = if( complicationData.type == ComplicationData.TYPE_SHORT_TEXT ) {
-                    complicationData
-                } else {
-                    null
-                }
+            applyComplicationData(watchFaceComplicationId, complicationData)
 
-                invalidate()
-                return
+            // Only data sent by the system tells something about the provider, not the one applied again internally
+            if (watchFaceComplicationId != WEATHER_COMPLICATION_ID) {
+                invalidateComplicationProviderIfChanged(watchFaceComplicationId, complicationData)
             }
+        }
+
+        private fun applyComplicationData(watchFaceComplicationId: Int, complicationData: ComplicationData) {
 
-            if( watchFaceComplicationId == BATTERY_COMPLICATION_ID ) {
-                if (DEBUG_LOGS) Log.d(TAG, "onComplicationDataUpdate, batteryComplicationData")
+            if( watchFaceComplicationId == WEATHER_COMPLICATION_ID ) {
+                if (DEBUG_LOGS) Log.d(TAG, "applyComplicationData, weatherComplicationData")
 
-                batteryComplicationData = if( complicationData.type == ComplicationData.TYPE_SHORT_TEXT ) {
+                weatherComplicationData = if( complicationData.type == ComplicationData.TYPE_SHORT_TEXT ) {
                     complicationData
                 } else {
                     null
                 }
 
-                try {
-                    complicationData.shortText?.getText(this@PixelMinimalWatchFace, System.currentTimeMillis())?.let { text ->
-                        val percentIndex = text.indexOf("%")
-                        val batteryChargePercentage = text.substring(0, if (percentIndex > 0) {percentIndex} else {text.length} ).toInt()
-
-                        lastWatchBatteryStatus = WatchBatteryStatus.DataReceived(
-                            batteryPercentage = batteryChargePercentage,
-                        )
-
-                        if (DEBUG_LOGS) Log.d(TAG, "onComplicationDataUpdate, batteryComplicationData saved: $lastWatchBatteryStatus")
-                    }
-                } catch (e: Exception) {
-                    Log.e(TAG, "onComplicationDataUpdate, error while parsing battery data from complication", e)
-                }
-
-                if (shouldShowBattery) {
-                    invalidate()
-                }
-
+                invalidationCoalescer.requestInvalidate()
                 return
             }
 
@@ -643,6 +731,7 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
                 storage,
                 watchFaceComplicationId,
                 complicationProviderSparseArray.get(watchFaceComplicationId),
+                samsungNextCalendarEvent,
             )
 
             complicationDataSparseArray.put(watchFaceComplicationId, data)
@@ -659,7 +748,7 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             timeDependentUpdateHandler.cancelUpdate()
 
             if( !ambient || storage.showComplicationsInAmbientMode() ) {
-                invalidate()
+                invalidationCoalescer.requestInvalidate()
             }
         }
 
@@ -750,17 +839,14 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
                 }
             }
 
-            // Update battery subscription if needed
-            if( storage.isUserPremium() &&
-                (storage.showWatchBattery() != shouldShowBattery || (hasWidgetFrozenBug && !didForceGalaxyWatch4BatterySubscription)) ) {
+            // Start or stop listening to the watch battery if needed
+            if( storage.isUserPremium() && storage.showWatchBattery() != shouldShowBattery ) {
                 shouldShowBattery = storage.showWatchBattery()
-                didForceGalaxyWatch4BatterySubscription = true
 
-                if( shouldShowBattery || hasWidgetFrozenBug ) {
-                    subscribeToBatteryComplicationData()
+                if( shouldShowBattery ) {
+                    watchBatterySource.start()
                 } else {
-                    unsubscribeToBatteryComplicationData()
-                    batteryComplicationData = null
+                    watchBatterySource.stop()
                 }
             }
 
@@ -776,7 +862,7 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
                 lowBitAmbient,
                 burnInProtection,
                 if( shouldShowWeather ) { weatherComplicationData } else { null },
-                if( shouldShowBattery ) { batteryComplicationData } else { null },
+                if( shouldShowBattery ) { watchBatterySource.batteryStatusFlow.value } else { null },
                 if (storage.showPhoneBattery()) { phoneBatteryStatus } else { null },
                 if (storage.isNotificationsSyncActivated()) { phoneNotifications.notificationsStateFlow.value } else { null },
             )
@@ -827,6 +913,7 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
 
                 if (isVisible) {
                     registerReceiver()
+                    invalidationCoalescer.onVisible()
                     updateComplicationProvidersInfoAsync()
 
                     /* Update time zone in case it changed while we weren't visible. */
@@ -849,6 +936,11 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
             }
 
             visible = isVisible
+            updateGalaxyWatch4HeartRateWatchingAllowed()
+        }
+
+        private fun updateGalaxyWatch4HeartRateWatchingAllowed() {
+            galaxyWatch4HeartRateWatchingAllowed.value = visible && (!ambient || storage.showComplicationsInAmbientMode())
         }
 
         private fun registerReceiver() {
@@ -873,64 +965,46 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
         }
 
         override fun onDataChanged(dataEvents: DataEventBuffer) {
-            try {
-                for (event in dataEvents) {
-                    if (event.type == DataEvent.TYPE_CHANGED) {
-                        val dataMap = DataMapItem.fromDataItem(event.dataItem).dataMap
-
-                        when(event.dataItem.uri.path) {
-                            "/premium" -> {
-                                if (dataMap.containsKey(DATA_KEY_PREMIUM)) {
-                                    handleIsPremiumCallback(dataMap.getBoolean(DATA_KEY_PREMIUM))
-                                }
-                            }
-                            "/notifications" -> {
-                                phoneNotifications.onNewData(dataMap)
-                            }
-                        }
-
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Error handling new data", e)
-            }
+            dataLayerIngestion.onDataChanged(dataEvents)
         }
 
         override fun onMessageReceived(messageEvent: MessageEvent) {
-            if (messageEvent.path == DATA_KEY_BATTERY_STATUS_PERCENT) {
-                try {
-                    val phoneBatteryPercentage: Int = messageEvent.data[0].toInt()
-                    if (phoneBatteryPercentage in 0..100) {
-                        val previousPhoneBatteryStatus = phoneBatteryStatus as? PhoneBatteryStatus.DataReceived
-                        phoneBatteryStatus = PhoneBatteryStatus.DataReceived(phoneBatteryPercentage, System.currentTimeMillis())
-
-                        if (storage.showPhoneBattery() &&
-                            (phoneBatteryPercentage != previousPhoneBatteryStatus?.batteryPercentage || previousPhoneBatteryStatus.isStale(System.currentTimeMillis()))) {
-                            invalidate()
-                        }
-                    }
-                } catch (t: Throwable) {
-                    Log.e("PixelWatchFace", "Error while parsing phone battery percentage from phone", t)
-                }
-            } else if (messageEvent.path == DATA_KEY_PREMIUM) {
-                try {
-                    handleIsPremiumCallback(messageEvent.data[0].toInt() == 1)
-                } catch (t: Throwable) {
-                    Log.e("PixelWatchFace", "Error while parsing premium status from phone", t)
+            dataLayerIngestion.onMessageReceived(messageEvent)
+        }
+
+        private fun onDataLayerUpdate(update: DataLayerIngestion.DataLayerUpdate) {
+            when(update) {
+                is DataLayerIngestion.DataLayerUpdate.PhoneBattery -> onPhoneBatteryUpdate(update)
+                is DataLayerIngestion.DataLayerUpdate.PremiumStatusChanged -> onPremiumStatusChanged(update)
+                DataLayerIngestion.DataLayerUpdate.PremiumStatusError -> {
                     Toast.makeText(service, R.string.premium_error, Toast.LENGTH_LONG).show()
                 }
+                is DataLayerIngestion.DataLayerUpdate.NotificationsData -> {
+                    phoneNotifications.onNewData(update.dataMap)
+                }
+                is DataLayerIngestion.DataLayerUpdate.PhoneStatus -> {
+                    update.phoneBattery?.let { onPhoneBatteryUpdate(it) }
+                    update.premiumStatusChanged?.let { onPremiumStatusChanged(it) }
+                }
             }
         }
 
-        private fun handleIsPremiumCallback(isPremium: Boolean) {
-            val wasPremium = storage.isUserPremium()
-            storage.setUserPremium(isPremium)
+        private fun onPhoneBatteryUpdate(update: DataLayerIngestion.DataLayerUpdate.PhoneBattery) {
+            val previousPhoneBatteryStatus = phoneBatteryStatus as? PhoneBatteryStatus.DataReceived
+            phoneBatteryStatus = update.status
 
-            if( !wasPremium && isPremium ) {
+            if (storage.showPhoneBattery() &&
+                (update.status.batteryPercentage != previousPhoneBatteryStatus?.batteryPercentage || previousPhoneBatteryStatus.isStale(System.currentTimeMillis()))) {
+                invalidationCoalescer.requestInvalidate()
+            }
+        }
+
+        private fun onPremiumStatusChanged(update: DataLayerIngestion.DataLayerUpdate.PremiumStatusChanged) {
+            if( !update.wasPremium && update.isPremium ) {
                 Toast.makeText(service, R.string.premium_confirmation, Toast.LENGTH_LONG).show()
             }
 
-            invalidate()
+            invalidationCoalescer.requestInvalidate()
         }
 
         override fun unscheduleDrawable(who: Drawable, what: Runnable) {
@@ -1039,12 +1113,12 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
                     .collectLatest { activated ->
                         if (!activated) {
                             Log.d(TAG, "Notifications from phone deactivated: invalidate")
-                            invalidate()
+                            eventLoop.send { invalidationCoalescer.requestInvalidate() }
                         } else {
                             phoneNotifications.notificationsStateFlow
                                 .collect { state ->
                                     Log.d(TAG, "Notifications from phone received, invalidate: $state")
-                                    invalidate()
+                                    eventLoop.send { invalidationCoalescer.requestInvalidate() }
                                 }
                         }
                     }
@@ -1054,15 +1128,15 @@ class PixelMinimalWatchFace : CanvasWatchFaceService() {
     }
 
     companion object {
-        private const val HALF_HOUR_MS = 1000*60*30
         private const val FIVE_MINS_MS = 1000*60*5
+        private const val HEART_RATE_MIN_UPDATE_INTERVAL_MS = 2000L
 
         const val LEFT_COMPLICATION_ID = 100
         const val RIGHT_COMPLICATION_ID = 101
         const val MIDDLE_COMPLICATION_ID = 102
         const val BOTTOM_COMPLICATION_ID = 103
         const val WEATHER_COMPLICATION_ID = 104
-        const val BATTERY_COMPLICATION_ID = 105
+        // 105 was the battery complication, the battery is now read from WatchBatterySource
         const val ANDROID_12_TOP_LEFT_COMPLICATION_ID = 106
         const val ANDROID_12_TOP_RIGHT_COMPLICATION_ID = 107
         const val ANDROID_12_BOTTOM_LEFT_COMPLICATION_ID = 108
@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface
+
+/**
+ * Phone status received from the phone as a single message, only the fields set are written:
+ *
+ * version (byte), fields mask (byte), then for each field of the mask, in this order:
+ * battery percent and charging (2 bytes), battery sync activated (byte),
+ * notifications sync status (byte), premium (byte).
+ *
+ * The phone only sends frames to watches advertising the pixel_minimal_watch_face_status_frame_v[VERSION]
+ * capability in wear.xml, which must be updated with [VERSION].
+ *
+ * Must be kept in sync with the phone encoder.
+ */
+data class StatusFrame(
+    val batteryPercent: Int?,
+    val isBatteryCharging: Boolean?,
+    val batterySyncActivated: Boolean?,
+    val notificationsSyncStatus: Int?,
+    val isPremium: Boolean?,
+) {
+    companion object {
+        const val PATH = "/status"
+        private const val VERSION = 1
+
+        private const val FIELD_BATTERY = 1
+        private const val FIELD_BATTERY_SYNC_ACTIVATED = 1 shl 1
+        private const val FIELD_NOTIFICATIONS_SYNC_STATUS = 1 shl 2
+        private const val FIELD_PREMIUM = 1 shl 3
+
+        /**
+         * @throws IllegalArgumentException if the frame is malformed or of an unknown version
+         */
+        fun decode(data: ByteArray): StatusFrame {
+            if (data.size < 2) {
+                throw IllegalArgumentException("Frame too short: ${data.size} bytes")
+            }
+
+            val version = data[0].toInt()
+            if (version != VERSION) {
+                throw IllegalArgumentException("Unknown frame version: $version")
+            }
+
+            val fieldsMask = data[1].toInt()
+            var offset = 2
+            fun readByte(): Int {
+                if (offset >= data.size) {
+                    throw IllegalArgumentException("Frame too short for fields $fieldsMask: ${data.size} bytes")
+                }
+
+                return data[offset++].toInt()
+            }
+
+            var batteryPercent: Int? = null
+            var isBatteryCharging: Boolean? = null
+            if (fieldsMask and FIELD_BATTERY != 0) {
+                batteryPercent = readByte()
+                isBatteryCharging = readByte() == 1
+            }
+
+            val batterySyncActivated = if (fieldsMask and FIELD_BATTERY_SYNC_ACTIVATED != 0) { readByte() == 1 } else { null }
+            val notificationsSyncStatus = if (fieldsMask and FIELD_NOTIFICATIONS_SYNC_STATUS != 0) { readByte() } else { null }
+            val isPremium = if (fieldsMask and FIELD_PREMIUM != 0) { readByte() == 1 } else { null }
+
+            return StatusFrame(
+                batteryPercent = batteryPercent,
+                isBatteryCharging = isBatteryCharging,
+                batterySyncActivated = batterySyncActivated,
+                notificationsSyncStatus = notificationsSyncStatus,
+                isPremium = isPremium,
+            )
+        }
+    }
+}
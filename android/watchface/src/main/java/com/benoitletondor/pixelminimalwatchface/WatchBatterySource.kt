@@ -0,0 +1,106 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.BatteryManager
+import android.util.Log
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+
+/**
+ * Watch battery level, pushed by the system battery broadcast instead of
+ * being parsed from the watch battery complication text.
+ */
+class WatchBatterySource(
+    private val context: Context,
+) {
+    private val batteryManager = context.getSystemService(Context.BATTERY_SERVICE) as BatteryManager
+    private var registered = false
+
+    private val batteryStatusMutableStateFlow = MutableStateFlow<WatchBatteryStatus>(WatchBatteryStatus.Unknown)
+    val batteryStatusFlow: StateFlow<WatchBatteryStatus> = batteryStatusMutableStateFlow
+
+    private val batteryChangedReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            onBatteryChanged(intent)
+        }
+    }
+
+    fun start() {
+        if (registered) {
+            return
+        }
+
+        if (DEBUG_LOGS) Log.d(TAG, "start")
+
+        registered = true
+        val stickyIntent = context.registerReceiver(batteryChangedReceiver, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+        if (stickyIntent != null) {
+            onBatteryChanged(stickyIntent)
+        }
+    }
+
+    fun stop() {
+        if (!registered) {
+            return
+        }
+
+        if (DEBUG_LOGS) Log.d(TAG, "stop")
+
+        registered = false
+        context.unregisterReceiver(batteryChangedReceiver)
+    }
+
+    private fun onBatteryChanged(intent: Intent) {
+        try {
+            val capacity = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+            val batteryPercentage = if (capacity in 0..100) {
+                capacity
+            } else {
+                val level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1)
+                val scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1)
+                if (level < 0 || scale <= 0) {
+                    return
+                }
+
+                level * 100 / scale
+            }
+
+            // ACTION_BATTERY_CHANGED also fires on voltage and temperature changes, only notify level changes
+            val currentStatus = batteryStatusMutableStateFlow.value
+            if (currentStatus is WatchBatteryStatus.DataReceived &&
+                currentStatus.batteryPercentage == batteryPercentage) {
+                return
+            }
+
+            if (DEBUG_LOGS) Log.d(TAG, "onBatteryChanged: $batteryPercentage%")
+
+            batteryStatusMutableStateFlow.value = WatchBatteryStatus.DataReceived(
+                batteryPercentage = batteryPercentage,
+            )
+        } catch (e: Exception) {
+            Log.e(TAG, "Error while reading battery status", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "WatchBatterySource"
+    }
+}
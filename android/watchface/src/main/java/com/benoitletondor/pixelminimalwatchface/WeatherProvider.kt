@@ -63,8 +63,57 @@ private enum class WeatherProviders(val info: WeatherProviderInfo) {
     )),
 }
 
+private const val NO_WEATHER_PROVIDER = "none"
+
+private class WeatherProviderCacheEntry(val provider: WeatherProviders?)
+
+/**
+ * Resolved provider, kept in memory and persisted in storage, and only reset when one of the
+ * weather packages changes, see [onPackageChangedInvalidateWeatherProviderCache].
+ */
+@Volatile private var weatherProviderCache: WeatherProviderCacheEntry? = null
+
 fun Context.getWeatherProviderInfo(): WeatherProviderInfo? {
-    return WeatherProviders.values().map { it.info }.firstOrNull { weatherProviderInfo ->
-        isServiceAvailable(weatherProviderInfo.appPackage, weatherProviderInfo.weatherProviderService)
+    weatherProviderCache?.let { return it.provider?.info }
+
+    val storage = Injection.storage(this)
+    val persistedProvider = storage.getWeatherProvider()
+    val persistedEntry = when (persistedProvider) {
+        null -> null
+        NO_WEATHER_PROVIDER -> WeatherProviderCacheEntry(null)
+        else -> WeatherProviders.values()
+            .firstOrNull { it.name == persistedProvider }
+            ?.let { WeatherProviderCacheEntry(it) }
+    }
+
+    if (persistedEntry != null) {
+        weatherProviderCache = persistedEntry
+        return persistedEntry.provider?.info
+    }
+
+    return refreshWeatherProviderInfo()
+}
+
+/**
+ * Resolves the provider using the package manager and updates the cache. Used when the cache
+ * is empty and once per process start, as package changes aren't received while the process is dead.
+ */
+fun Context.refreshWeatherProviderInfo(): WeatherProviderInfo? {
+    val provider = WeatherProviders.values().firstOrNull { provider ->
+        isServiceAvailable(provider.info.appPackage, provider.info.weatherProviderService)
     }
+
+    weatherProviderCache = WeatherProviderCacheEntry(provider)
+    Injection.storage(this).setWeatherProvider(provider?.name ?: NO_WEATHER_PROVIDER)
+
+    return provider?.info
+}
+
+fun Context.onPackageChangedInvalidateWeatherProviderCache(packageName: String?) {
+    if (WeatherProviders.values().none { it.info.appPackage == packageName }) {
+        return
+    }
+
+    weatherProviderCache = null
+    Injection.storage(this).setWeatherProvider(null)
 }
@@ -22,6 +22,7 @@ import android.util.SparseArray
 import android.view.WindowInsets
 import com.benoitletondor.pixelminimalwatchface.PhoneBatteryStatus
 import com.benoitletondor.pixelminimalwatchface.PhoneNotifications
+import com.benoitletondor.pixelminimalwatchface.WatchBatteryStatus
 import com.benoitletondor.pixelminimalwatchface.model.ComplicationColors
 import java.util.*
 
@@ -54,7 +55,7 @@ interface WatchFaceDrawer {
         lowBitAmbient: Boolean,
         burnInProtection: Boolean,
         weatherComplicationData: ComplicationData?,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
         notificationsState: PhoneNotifications.NotificationState?,
     )
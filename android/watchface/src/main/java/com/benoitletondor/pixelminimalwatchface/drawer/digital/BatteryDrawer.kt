@@ -20,12 +20,11 @@ import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Rect
-import android.support.wearable.complications.ComplicationData
-import android.util.Log
 import androidx.core.content.ContextCompat
 import com.benoitletondor.pixelminimalwatchface.helper.toBitmap
 import com.benoitletondor.pixelminimalwatchface.PhoneBatteryStatus
 import com.benoitletondor.pixelminimalwatchface.R
+import com.benoitletondor.pixelminimalwatchface.WatchBatteryStatus
 import com.benoitletondor.pixelminimalwatchface.getBatteryText
 import java.util.*
 
@@ -38,7 +37,7 @@ interface BatteryDrawer {
         drawBattery: Boolean,
         drawPhoneBattery: Boolean,
         calendar: Calendar,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
     )
 
@@ -71,12 +70,16 @@ class BatteryDrawerImpl(
         drawBattery: Boolean,
         drawPhoneBattery: Boolean,
         calendar: Calendar,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
     ) {
-        val batteryText = if (drawBattery) {
-            batteryComplicationData?.shortText?.getText(context, calendar.timeInMillis)
-                ?.toString()?.filter { it.isDigit() }?.plus("%")
+        val watchBatteryPercentage = if (drawBattery) {
+            (watchBatteryStatus as? WatchBatteryStatus.DataReceived)?.batteryPercentage
+        } else {
+            null
+        }
+        val batteryText = if (watchBatteryPercentage != null) {
+            "$watchBatteryPercentage%"
         } else {
             null
         }
@@ -112,7 +115,7 @@ class BatteryDrawerImpl(
             }
 
             if (batteryText != null) {
-                val icon = if (phoneBatteryText == null ) { getBatteryIcon(batteryText) } else { watchBatteryIcon }
+                val icon = if (phoneBatteryText == null && watchBatteryPercentage != null) { getBatteryIcon(watchBatteryPercentage) } else { watchBatteryIcon }
 
                 canvas.drawBitmap(
                     icon,
@@ -178,14 +181,7 @@ class BatteryDrawerImpl(
         return batteryIndicatorRect.contains(x, y)
     }
 
-    private fun getBatteryIcon(batteryText: String): Bitmap {
-        val batteryPercent = try {
-            Integer.parseInt(batteryText.replace("%", ""))
-        } catch (t: Throwable) {
-            Log.e("WatchFaceDrawer", "Error parsing battery data", t)
-            50
-        }
-
+    private fun getBatteryIcon(batteryPercent: Int): Bitmap {
         return when {
             batteryPercent <= 10 -> { battery10Icon }
             batteryPercent <= 25 -> { battery20Icon }
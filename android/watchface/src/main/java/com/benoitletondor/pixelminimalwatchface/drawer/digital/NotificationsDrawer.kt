@@ -77,17 +77,20 @@ class NotificationsDrawerImpl(
                         state.icons[i]
                     }
 
-                    canvas.drawBitmap(
-                        bitmap,
-                        null,
-                        RectF(
-                            x,
-                            notificationTopPx,
-                            x + notificationSizePx,
-                            notificationTopPx + notificationSizePx
-                        ),
-                        paint,
-                    )
+                    // Icons still being fetched keep their slot empty
+                    if (bitmap != null) {
+                        canvas.drawBitmap(
+                            bitmap,
+                            null,
+                            RectF(
+                                x,
+                                notificationTopPx,
+                                x + notificationSizePx,
+                                notificationTopPx + notificationSizePx
+                            ),
+                            paint,
+                        )
+                    }
 
                     x += notificationSizePx + notificationSpacePx
                 }
@@ -119,7 +122,7 @@ class NotificationsDrawerImpl(
     }
 
     companion object {
-        private const val NOTIFICATION_ICON_SIZE_DP = 12
+        const val NOTIFICATION_ICON_SIZE_DP = 12
         private const val NOTIFICATION_SPACING_DP = 5
     }
 }
\ No newline at end of file
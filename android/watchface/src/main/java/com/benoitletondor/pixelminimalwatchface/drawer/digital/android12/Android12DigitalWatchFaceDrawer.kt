@@ -248,7 +248,7 @@ class Android12DigitalWatchFaceDrawer(
         lowBitAmbient: Boolean,
         burnInProtection: Boolean,
         weatherComplicationData: ComplicationData?,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
         notificationsState: PhoneNotifications.NotificationState?,
     ) {
@@ -285,7 +285,7 @@ class Android12DigitalWatchFaceDrawer(
                 storage.showPhoneBattery(),
                 !ambient || storage.getShowDateInAmbient(),
                 weatherComplicationData,
-                batteryComplicationData,
+                watchBatteryStatus,
                 phoneBatteryStatus,
                 notificationsState,
             )
@@ -507,7 +507,7 @@ class Android12DigitalWatchFaceDrawer(
         drawPhoneBattery: Boolean,
         drawDate: Boolean,
         weatherComplicationData: ComplicationData?,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
         notificationsState: PhoneNotifications.NotificationState?,
     ) {
@@ -581,7 +581,7 @@ class Android12DigitalWatchFaceDrawer(
                 drawBattery,
                 drawPhoneBattery,
                 calendar,
-                batteryComplicationData,
+                watchBatteryStatus,
                 phoneBatteryStatus
             )
         }
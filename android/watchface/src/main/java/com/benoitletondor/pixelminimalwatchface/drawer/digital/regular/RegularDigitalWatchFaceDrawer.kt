@@ -245,7 +245,7 @@ class RegularDigitalWatchFaceDrawer(
         lowBitAmbient: Boolean,
         burnInProtection: Boolean,
         weatherComplicationData: ComplicationData?,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
         notificationsState: PhoneNotifications.NotificationState?,
     ) {
@@ -275,7 +275,7 @@ class RegularDigitalWatchFaceDrawer(
                 storage.showPhoneBattery(),
                 !ambient || storage.getShowDateInAmbient(),
                 weatherComplicationData,
-                batteryComplicationData,
+                watchBatteryStatus,
                 phoneBatteryStatus,
                 notificationsState,
             )
@@ -425,7 +425,7 @@ class RegularDigitalWatchFaceDrawer(
         drawPhoneBattery: Boolean,
         drawDate: Boolean,
         weatherComplicationData: ComplicationData?,
-        batteryComplicationData: ComplicationData?,
+        watchBatteryStatus: WatchBatteryStatus?,
         phoneBatteryStatus: PhoneBatteryStatus?,
         notificationsState: PhoneNotifications.NotificationState?,
     ) {
@@ -468,7 +468,7 @@ class RegularDigitalWatchFaceDrawer(
                 drawBattery,
                 drawPhoneBattery,
                 calendar,
-                batteryComplicationData,
+                watchBatteryStatus,
                 phoneBatteryStatus,
             )
         }
@@ -24,6 +24,7 @@ private const val QUERY_BATTERY_DEACTIVATED_SYNC_PATH = "/batterySync/deactivate
 
 private const val QUERY_NOTIFICATIONS_ACTIVATED_SYNC_PATH = "/notificationsSync/activate"
 private const val QUERY_NOTIFICATIONS_DEACTIVATED_SYNC_PATH = "/notificationsSync/deactivate"
+private const val QUERY_NOTIFICATIONS_RESEND_ICONS_PATH = "/notificationsSync/resendIcons"
 
 fun Set<Node>.findBestCompanionNode(): Node? {
     return firstOrNull { it.isNearby } ?: firstOrNull()
@@ -59,4 +60,12 @@ suspend fun Node.stopNotificationsSync(context: Context) {
         QUERY_NOTIFICATIONS_DEACTIVATED_SYNC_PATH,
         null,
     ).await()
+}
+
+suspend fun Node.requestNotificationsIconsResend(context: Context) {
+    Wearable.getMessageClient(context).sendMessage(
+        id,
+        QUERY_NOTIFICATIONS_RESEND_ICONS_PATH,
+        null,
+    ).await()
 }
\ No newline at end of file
@@ -29,7 +29,6 @@ import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
 import android.support.wearable.complications.ComplicationData
-import android.support.wearable.complications.ComplicationProviderInfo
 import android.support.wearable.complications.ComplicationText
 import android.util.Log
 import androidx.core.content.pm.PackageInfoCompat
@@ -37,15 +36,20 @@ import com.benoitletondor.pixelminimalwatchface.Device
 import com.benoitletondor.pixelminimalwatchface.PixelMinimalWatchFace
 import com.benoitletondor.pixelminimalwatchface.R
 import com.benoitletondor.pixelminimalwatchface.common.helper.dpToPx
+import com.benoitletondor.pixelminimalwatchface.model.ComplicationProviderKey
 import com.benoitletondor.pixelminimalwatchface.model.Storage
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.channels.onFailure
 import kotlinx.coroutines.channels.trySendBlocking
-import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.*
+import kotlinx.coroutines.launch
 import org.json.JSONObject
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.roundToInt
 
 private val galaxyWatch4AODBuggyWearOSVersions = setOf(
@@ -61,7 +65,6 @@ val isGalaxyWatch4CalendarBuggyWearOSVersion = Device.isSamsungGalaxyWatch && (
     Build.VERSION.SECURITY_PATCH.startsWith("2022-04")
 )
 
-val hasWidgetFrozenBug = Device.isWearOS3
 val hasAmbientDisplayGoingOffBug = Device.isPixelWatch
 
 fun Context.getTopAndBottomMargins(): Float {
@@ -83,7 +86,8 @@ fun ComplicationData.sanitize(
     context: Context,
     storage: Storage,
     watchFaceComplicationId: Int,
-    providerInfo: ComplicationProviderInfo?,
+    providerInfo: ComplicationProviderKey?,
+    samsungNextCalendarEvent: CalendarEvent?,
 ): ComplicationData {
     try {
         if (!Device.isSamsungGalaxyWatch) {
@@ -98,9 +102,9 @@ fun ComplicationData.sanitize(
             return this
         }
 
-        return when {
-            providerInfo.isSamsungHeartRateProvider() -> {
-                val shortText = context.getSamsungHeartRateData() ?: "?"
+        return when(providerInfo.getSamsungProviderKind(context)) {
+            SamsungProviderKind.HEART_RATE -> {
+                val shortText = samsungHeartRateCache ?: "?"
 
                 val builder = ComplicationData.Builder(ComplicationData.TYPE_SHORT_TEXT)
                     .setTapAction(tapAction)
@@ -112,7 +116,7 @@ fun ComplicationData.sanitize(
                     })
                 builder.build()
             }
-            providerInfo.isSamsungHealthBadComplicationData(context) -> {
+            SamsungProviderKind.HEALTH_BAD_COMPLICATION_DATA -> {
                 ComplicationData.Builder(this)
                     .setTapAction(
                         PendingIntent.getActivity(
@@ -126,8 +130,8 @@ fun ComplicationData.sanitize(
                     )
                     .build()
             }
-            providerInfo.isSamsungCalendarBuggyProvider() -> {
-                val nextEvent = context.getNextCalendarEvent() ?: return this
+            SamsungProviderKind.CALENDAR_BUGGY -> {
+                val nextEvent = samsungNextCalendarEvent ?: return this
                 val isLargeWidget = PixelMinimalWatchFace.BOTTOM_COMPLICATION_ID == watchFaceComplicationId
 
                 val builder = ComplicationData.Builder(if (isLargeWidget) { ComplicationData.TYPE_LONG_TEXT } else { ComplicationData.TYPE_SHORT_TEXT })
@@ -155,7 +159,7 @@ fun ComplicationData.sanitize(
 
                 builder.build()
             }
-            else -> this
+            SamsungProviderKind.REGULAR -> this
         }
     } catch (t: Throwable) {
         Log.e("PixelWatchFace", "Error while sanitizing complication data", t)
@@ -163,10 +167,61 @@ fun ComplicationData.sanitize(
     }
 }
 
-private fun ComplicationProviderInfo.isSamsungHealthBadComplicationData(context: Context): Boolean {
-    val sHealthVersion = try {
-        context.getShealthAppVersion()
-    } catch (e: Throwable) {
+private enum class SamsungProviderKind {
+    HEART_RATE,
+    HEALTH_BAD_COMPLICATION_DATA,
+    CALENDAR_BUGGY,
+    REGULAR,
+}
+
+private const val S_HEALTH_VERSION_NOT_INSTALLED = -1L
+
+/**
+ * Classification of providers, computed once per provider for the current S Health version.
+ * Cleared when S Health is updated, see [onPackageChangedInvalidateSamsungProvidersCache].
+ */
+private val samsungProviderKindCache = ConcurrentHashMap<ComplicationProviderKey, SamsungProviderKind>()
+@Volatile private var sHealthAppVersionCache: Long? = null
+
+private fun ComplicationProviderKey.getSamsungProviderKind(context: Context): SamsungProviderKind {
+    return samsungProviderKindCache[this] ?: kotlin.run {
+        val kind = when {
+            isSamsungHeartRateProvider() -> SamsungProviderKind.HEART_RATE
+            isSamsungHealthBadComplicationData(context) -> SamsungProviderKind.HEALTH_BAD_COMPLICATION_DATA
+            isSamsungCalendarBuggyProvider() -> SamsungProviderKind.CALENDAR_BUGGY
+            else -> SamsungProviderKind.REGULAR
+        }
+
+        samsungProviderKindCache[this] = kind
+        kind
+    }
+}
+
+fun onPackageChangedInvalidateSamsungProvidersCache(packageName: String?) {
+    if (packageName != S_HEALTH_PACKAGE_NAME) {
+        return
+    }
+
+    sHealthAppVersionCache = null
+    samsungProviderKindCache.clear()
+}
+
+private fun Context.getCachedShealthAppVersion(): Long {
+    return sHealthAppVersionCache ?: kotlin.run {
+        val version = try {
+            getShealthAppVersion()
+        } catch (e: Throwable) {
+            S_HEALTH_VERSION_NOT_INSTALLED
+        }
+
+        sHealthAppVersionCache = version
+        version
+    }
+}
+
+private fun ComplicationProviderKey.isSamsungHealthBadComplicationData(context: Context): Boolean {
+    val sHealthVersion = context.getCachedShealthAppVersion()
+    if (sHealthVersion == S_HEALTH_VERSION_NOT_INSTALLED) {
         return false
     }
 
@@ -180,29 +235,29 @@ private fun ComplicationProviderInfo.isSamsungHealthBadComplicationData(context:
     }
 }
 
-private fun ComplicationProviderInfo.isSamsungDailyActivityBuggyProvider(): Boolean {
+private fun ComplicationProviderKey.isSamsungDailyActivityBuggyProvider(): Boolean {
     return appName in samsungHealthAppNames && providerName in dailyActivityProviderNames
 }
 
-fun ComplicationProviderInfo.isSamsungCalendarBuggyProvider(): Boolean {
+fun ComplicationProviderKey.isSamsungCalendarBuggyProvider(): Boolean {
     return isGalaxyWatch4CalendarBuggyWearOSVersion
         && appName in oneUIWatchHomeAppNames
         && providerName in calendarProviderNames
 }
 
-private fun ComplicationProviderInfo.isSamsungStepsProvider(): Boolean {
+private fun ComplicationProviderKey.isSamsungStepsProvider(): Boolean {
     return appName in samsungHealthAppNames && providerName in stepsProviderNames
 }
 
-private fun ComplicationProviderInfo.isSamsungSleepProvider(): Boolean {
+private fun ComplicationProviderKey.isSamsungSleepProvider(): Boolean {
     return appName in samsungHealthAppNames && providerName in sleepProviderNames
 }
 
-private fun ComplicationProviderInfo.isSamsungWaterSleepProvider(): Boolean {
+private fun ComplicationProviderKey.isSamsungWaterSleepProvider(): Boolean {
     return appName in samsungHealthAppNames && providerName in waterProviderNames
 }
 
-fun ComplicationProviderInfo.isSamsungHeartRateProvider(): Boolean {
+fun ComplicationProviderKey.isSamsungHeartRateProvider(): Boolean {
     return appName in samsungHealthAppNames && providerName in heartRateProviderNames
 }
 
@@ -214,10 +269,8 @@ private fun Context.getShealthAppVersion(): Long {
 @SuppressLint("NewApi", "Range")
 private fun Context.getNextCalendarEvent(): CalendarEvent? {
     try {
-        val uri = "content://$S_CALENDAR_PACKAGE_NAME.watch/nextEvents"
-
         contentResolver.query(
-            Uri.parse(uri),
+            Uri.parse(S_CALENDAR_NEXT_EVENTS_URI),
             null,
             Bundle().apply { putInt(ContentResolver.QUERY_ARG_LIMIT, 1) },
             null,
@@ -240,11 +293,67 @@ private fun Context.getNextCalendarEvent(): CalendarEvent? {
     }
 }
 
-private data class CalendarEvent(
+data class CalendarEvent(
     val title: String,
     val startTimestamp: Long,
 )
 
+/**
+ * Wall-clock time at which the next event should be loaded again: when it starts, or every
+ * [CALENDAR_STARTED_EVENT_REFRESH_DELAY_MS] once started. Without a next event, it's loaded again
+ * every [CALENDAR_NO_EVENT_REFRESH_DELAY_MS] as the provider may not notify new events.
+ */
+fun CalendarEvent?.getNextRefreshTimestamp(now: Long): Long {
+    if (this == null) {
+        return now + CALENDAR_NO_EVENT_REFRESH_DELAY_MS
+    }
+
+    return if (startTimestamp > now) { startTimestamp } else { now + CALENDAR_STARTED_EVENT_REFRESH_DELAY_MS }
+}
+
+/**
+ * Loads the next Samsung calendar event off the main thread, when the calendar provider changes,
+ * when [refreshRequests] emits and at [getNextRefreshTimestamp], and emits each loaded value so that
+ * [sanitize] never queries the calendar provider on the main thread.
+ *
+ * Delays don't run while the watch is dozing in ambient mode: callers should also emit
+ * [refreshRequests] once the refresh timestamp is reached on the wall clock.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+fun Context.watchSamsungCalendarNextEvent(refreshRequests: Flow<Unit>): Flow<CalendarEvent?> = callbackFlow {
+    val observer = object : ContentObserver(Handler(Looper.getMainLooper())) {
+        override fun onChange(selfChange: Boolean) {
+            super.onChange(selfChange)
+
+            trySend(Unit)
+        }
+    }
+
+    contentResolver.registerContentObserver(Uri.parse(S_CALENDAR_NEXT_EVENTS_URI), true, observer)
+    trySend(Unit)
+
+    launch {
+        refreshRequests.collect {
+            trySend(Unit)
+        }
+    }
+
+    awaitClose {
+        contentResolver.unregisterContentObserver(observer)
+    }
+}
+    .conflate()
+    .transformLatest {
+        while (true) {
+            val nextEvent = getNextCalendarEvent()
+            emit(nextEvent)
+
+            val now = System.currentTimeMillis()
+            delay(nextEvent.getNextRefreshTimestamp(now) - now)
+        }
+    }
+    .flowOn(Dispatchers.IO)
+
 private fun Context.getSamsungHeartRateData(): String? {
     val uri = "content://$S_HEALTH_PACKAGE_NAME.healthdataprovider"
 
@@ -268,7 +377,37 @@ private fun Context.getSamsungHeartRateData(): String? {
     return null
 }
 
-fun Context.watchSamsungHeartRateUpdates(): Flow<Unit> = callbackFlow {
+/**
+ * Latest heart rate value, kept up to date by [watchSamsungHeartRateData] so that [sanitize] never
+ * calls the S Health provider itself.
+ */
+@Volatile private var samsungHeartRateCache: String? = null
+
+/**
+ * Fetches and parses heart rate data off the main thread each time S Health notifies a change,
+ * conflating bursts and emitting at most once every [minUpdateIntervalMs].
+ */
+fun Context.watchSamsungHeartRateData(minUpdateIntervalMs: Long): Flow<Unit> = watchSamsungHeartRateUpdates()
+    .onStart { emit(Unit) }
+    .conflate()
+    .transform {
+        val heartRate = try {
+            getSamsungHeartRateData()
+        } catch (e: Exception) {
+            Log.e("CompatHelper", "Error while getting heart rate data", e)
+            null
+        }
+
+        if (heartRate != samsungHeartRateCache) {
+            samsungHeartRateCache = heartRate
+            emit(Unit)
+        }
+
+        delay(minUpdateIntervalMs)
+    }
+    .flowOn(Dispatchers.IO)
+
+private fun Context.watchSamsungHeartRateUpdates(): Flow<Unit> = callbackFlow {
     val uri = "content://$S_HEALTH_PACKAGE_NAME.healthdataprovider/"
     val heartRateMethod = "heart_rate"
 
@@ -306,6 +445,9 @@ private fun getSamsungCalendarHomeComponentName() = ComponentName(
 
 private const val S_HEALTH_PACKAGE_NAME = "com.samsung.android.wear.shealth"
 private const val S_CALENDAR_PACKAGE_NAME = "com.samsung.android.calendar"
+private const val S_CALENDAR_NEXT_EVENTS_URI = "content://$S_CALENDAR_PACKAGE_NAME.watch/nextEvents"
+private const val CALENDAR_STARTED_EVENT_REFRESH_DELAY_MS = 1000 * 60 * 30L
+private const val CALENDAR_NO_EVENT_REFRESH_DELAY_MS = 1000 * 60 * 15L
 private const val S_HEALTH_6_20_0_016 = 6200016L
 private const val S_HEALTH_6_21_0_051 = 6210051L
 
@@ -0,0 +1,92 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface.helper
+
+import android.os.Handler
+import android.os.Looper
+import android.os.Message
+import android.os.SystemClock
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchface.DEBUG_LOGS
+import com.benoitletondor.pixelminimalwatchface.PixelMinimalWatchFace
+import java.lang.ref.WeakReference
+
+/**
+ * Merges complication data updates arriving within one frame interval into a single redraw.
+ * The first update after a quiet period (or after becoming visible) invalidates right away.
+ */
+class ComplicationInvalidationCoalescer(
+    private val engine: WeakReference<PixelMinimalWatchFace.Engine>,
+) : Handler(Looper.getMainLooper()) {
+    private var hasInvalidateScheduled = false
+    private var lastInvalidateTimestamp = 0L
+
+    var coalescedUpdatesCount = 0L
+        private set
+
+    override fun handleMessage(msg: Message) {
+        super.handleMessage(msg)
+
+        hasInvalidateScheduled = false
+        invalidateNow()
+    }
+
+    fun requestInvalidate() {
+        if (Looper.myLooper() != looper) {
+            post { requestInvalidate() }
+            return
+        }
+
+        if (hasInvalidateScheduled) {
+            coalescedUpdatesCount++
+            if (DEBUG_LOGS) Log.d(TAG, "requestInvalidate: coalesced, total: $coalescedUpdatesCount")
+            return
+        }
+
+        val elapsedSinceLastInvalidate = SystemClock.uptimeMillis() - lastInvalidateTimestamp
+        if (elapsedSinceLastInvalidate >= FRAME_INTERVAL_MS) {
+            invalidateNow()
+        } else {
+            hasInvalidateScheduled = true
+            sendEmptyMessageDelayed(MSG_INVALIDATE, FRAME_INTERVAL_MS - elapsedSinceLastInvalidate)
+        }
+    }
+
+    /**
+     * Makes sure the next update is drawn immediately, to never delay the first frame after visibility.
+     */
+    fun onVisible() {
+        lastInvalidateTimestamp = 0L
+    }
+
+    fun release() {
+        hasInvalidateScheduled = false
+        removeMessages(MSG_INVALIDATE)
+    }
+
+    private fun invalidateNow() {
+        val engine = engine.get() ?: return
+
+        lastInvalidateTimestamp = SystemClock.uptimeMillis()
+        engine.invalidate()
+    }
+
+    companion object {
+        private const val TAG = "InvalidationCoalescer"
+        private const val MSG_INVALIDATE = 0
+        private const val FRAME_INTERVAL_MS = 16L
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface.helper
+
+import android.os.Handler
+import android.os.Looper
+import android.os.Message
+import android.util.Log
+import com.benoitletondor.pixelminimalwatchface.DEBUG_LOGS
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Funnels events coming from any thread to the main looper, where they are run in order.
+ * Events sent while a drain is pending are processed together in a single message, so the engine
+ * state is only ever written from the main thread.
+ */
+class EngineEventLoop : Handler(Looper.getMainLooper()) {
+    private val inbox = ConcurrentLinkedQueue<() -> Unit>()
+    private val drainScheduled = AtomicBoolean(false)
+    @Volatile private var released = false
+
+    override fun handleMessage(msg: Message) {
+        super.handleMessage(msg)
+
+        drainScheduled.set(false)
+        drain()
+    }
+
+    fun send(event: () -> Unit) {
+        if (released) {
+            return
+        }
+
+        inbox.offer(event)
+        if (drainScheduled.compareAndSet(false, true)) {
+            sendEmptyMessage(MSG_DRAIN)
+        }
+    }
+
+    fun release() {
+        released = true
+        removeMessages(MSG_DRAIN)
+        inbox.clear()
+    }
+
+    private fun drain() {
+        var processedEvents = 0
+        while (!released) {
+            val event = inbox.poll() ?: break
+
+            try {
+                event()
+            } catch (e: Exception) {
+                Log.e(TAG, "Error while processing engine event", e)
+            }
+
+            processedEvents++
+        }
+
+        if (DEBUG_LOGS) Log.d(TAG, "drain, processed $processedEvents events")
+    }
+
+    companion object {
+        private const val TAG = "EngineEventLoop"
+        private const val MSG_DRAIN = 0
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.benoitletondor.pixelminimalwatchface.model
+
+import android.support.wearable.complications.ComplicationProviderInfo
+import org.json.JSONObject
+
+/**
+ * Structural identity of a complication provider, comparable and persistable unlike
+ * [ComplicationProviderInfo].
+ */
+data class ComplicationProviderKey(
+    val appName: String?,
+    val providerName: String?,
+    val complicationType: Int,
+) {
+    fun toJson(): JSONObject = JSONObject()
+        .put(JSON_KEY_APP_NAME, appName)
+        .put(JSON_KEY_PROVIDER_NAME, providerName)
+        .put(JSON_KEY_COMPLICATION_TYPE, complicationType)
+
+    companion object {
+        private const val JSON_KEY_APP_NAME = "appName"
+        private const val JSON_KEY_PROVIDER_NAME = "providerName"
+        private const val JSON_KEY_COMPLICATION_TYPE = "type"
+
+        fun fromJson(json: JSONObject) = ComplicationProviderKey(
+            appName = if (json.has(JSON_KEY_APP_NAME)) { json.getString(JSON_KEY_APP_NAME) } else { null },
+            providerName = if (json.has(JSON_KEY_PROVIDER_NAME)) { json.getString(JSON_KEY_PROVIDER_NAME) } else { null },
+            complicationType = json.getInt(JSON_KEY_COMPLICATION_TYPE),
+        )
+    }
+}
+
+fun ComplicationProviderInfo.toProviderKey() = ComplicationProviderKey(
+    appName = appName,
+    providerName = providerName,
+    complicationType = complicationType,
+)
+
+/**
+ * Last known providers per complication id, a null value meaning no provider is set for the slot.
+ */
+data class ComplicationProvidersCache(
+    val retrievalTimestamp: Long,
+    val providers: Map<Int, ComplicationProviderKey?>,
+) {
+    fun isExpired(currentTimestamp: Long): Boolean = currentTimestamp - retrievalTimestamp >= TTL_MS
+
+    fun toJson(): String = JSONObject()
+        .put(JSON_KEY_TIMESTAMP, retrievalTimestamp)
+        .put(JSON_KEY_PROVIDERS, JSONObject().apply {
+            for ((complicationId, providerKey) in providers) {
+                put(complicationId.toString(), providerKey?.toJson() ?: JSONObject.NULL)
+            }
+        })
+        .toString()
+
+    companion object {
+        private const val TTL_MS = 1000 * 60 * 60 * 6L
+        private const val JSON_KEY_TIMESTAMP = "ts"
+        private const val JSON_KEY_PROVIDERS = "providers"
+
+        fun fromJson(json: String): ComplicationProvidersCache {
+            val jsonObject = JSONObject(json)
+            val providersJson = jsonObject.getJSONObject(JSON_KEY_PROVIDERS)
+
+            return ComplicationProvidersCache(
+                retrievalTimestamp = jsonObject.getLong(JSON_KEY_TIMESTAMP),
+                providers = providersJson.keys().asSequence().associate { complicationId ->
+                    complicationId.toInt() to providersJson.optJSONObject(complicationId)?.let { ComplicationProviderKey.fromJson(it) }
+                },
+            )
+        }
+    }
+}
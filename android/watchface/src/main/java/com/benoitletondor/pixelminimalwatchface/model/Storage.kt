@@ -17,6 +17,7 @@ package com.benoitletondor.pixelminimalwatchface.model
 
 import android.content.Context
 import android.graphics.ColorFilter
+import android.util.Log
 import androidx.annotation.ColorInt
 import com.benoitletondor.pixelminimalwatchface.R
 import com.benoitletondor.pixelminimalwatchface.helper.DEFAULT_TIME_SIZE
@@ -78,6 +79,8 @@ private const val KEY_NOTIFICATION_ICONS_COLOR = "notificationIconsColor"
 private const val KEY_SHOW_NOTIFICATIONS_AMBIENT = "showNotificationsAmbient"
 private const val KEY_SHOW_WEAR_OS_LOGO_AMBIENT = "showWearOSLogoAmbient"
 private const val KEY_BETA_NOTIFICATIONS_DISCLAIMER_SHOWN = "betaNotificationsDisclaimerBeenShown"
+private const val KEY_WEATHER_PROVIDER = "weatherProvider"
+private const val KEY_COMPLICATION_PROVIDERS_CACHE = "complicationProvidersCache"
 
 interface Storage {
     fun getComplicationColors(): ComplicationColors
@@ -172,6 +175,10 @@ interface Storage {
     fun watchShowWearOSLogoInAmbient(): Flow<Boolean>
     fun hasBetaNotificationsDisclaimerBeenShown(): Boolean
     fun setBetaNotificationsDisclaimerShown()
+    fun getWeatherProvider(): String?
+    fun setWeatherProvider(weatherProvider: String?)
+    fun getComplicationProvidersCache(): ComplicationProvidersCache?
+    fun setComplicationProvidersCache(cache: ComplicationProvidersCache?)
 }
 
 class StorageImpl(
@@ -606,6 +613,29 @@ class StorageImpl(
 
     override fun setBetaNotificationsDisclaimerShown() = betaNotificationsDisclaimerShownCache.set(true)
 
+    override fun getWeatherProvider(): String? {
+        return sharedPreferences.getString(KEY_WEATHER_PROVIDER, null)
+    }
+
+    override fun setWeatherProvider(weatherProvider: String?) {
+        sharedPreferences.edit().putString(KEY_WEATHER_PROVIDER, weatherProvider).apply()
+    }
+
+    override fun getComplicationProvidersCache(): ComplicationProvidersCache? {
+        val json = sharedPreferences.getString(KEY_COMPLICATION_PROVIDERS_CACHE, null) ?: return null
+
+        return try {
+            ComplicationProvidersCache.fromJson(json)
+        } catch (e: Exception) {
+            Log.e("Storage", "Error while parsing complication providers cache", e)
+            null
+        }
+    }
+
+    override fun setComplicationProvidersCache(cache: ComplicationProvidersCache?) {
+        sharedPreferences.edit().putString(KEY_COMPLICATION_PROVIDERS_CACHE, cache?.toJson()).apply()
+    }
+
     override fun hasFeatureDropWinter2022NotificationBeenShown(): Boolean {
         return sharedPreferences.getBoolean(KEY_FEATURE_DROP_2022_NOTIFICATION, false)
     }
@@ -982,6 +982,8 @@ class SettingsActivity : ComponentActivity() {
             val granted = isPermissionGranted("com.google.android.wearable.permission.RECEIVE_COMPLICATION_DATA")
             storage.setShowWatchBattery(granted)
         } else if ( requestCode == COMPLICATION_CONFIG_REQUEST_CODE && resultCode == RESULT_OK ) {
+            storage.setComplicationProvidersCache(null)
+
             if (storage.useAndroid12Style()) {
                 lifecycleScope.launch { updateAndroid12Complications() }
             } else {
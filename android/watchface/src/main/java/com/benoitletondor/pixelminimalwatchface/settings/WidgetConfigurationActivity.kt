@@ -270,6 +270,7 @@ class WidgetConfigurationActivity : ComponentActivity() {
                 ProviderChooserIntent.EXTRA_PROVIDER_INFO)
 
             complicationProviderMutableFlow.value = complicationProviderInfo
+            Injection.storage(this).setComplicationProvidersCache(null)
 
             setResult(RESULT_OK)
         } else if (requestCode == UPDATE_COLORS_CONFIG_REQUEST_CODE && resultCode == RESULT_OK) {
@@ -21,6 +21,7 @@ import android.util.Log
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
 import com.benoitletondor.pixelminimalwatchface.Injection
+import com.benoitletondor.pixelminimalwatchface.StatusFrame
 import com.benoitletondor.pixelminimalwatchface.helper.MutableLiveFlow
 import com.benoitletondor.pixelminimalwatchface.helper.await
 import com.benoitletondor.pixelminimalwatchface.helper.findBestCompanionNode
@@ -86,11 +87,15 @@ class NotificationsSyncConfigurationViewModel(
     }
 
     override fun onMessageReceived(messageEvent: MessageEvent) {
-        if (messageEvent.path == DATA_KEY_SYNC_STATUS) {
+        if (messageEvent.path == DATA_KEY_SYNC_STATUS || messageEvent.path == StatusFrame.PATH) {
             try {
                 val currentState = state
                 if (currentState is State.WaitingForPhoneStatusResponse || currentState is State.PhoneStatusResponse) {
-                    val syncStatusInt = messageEvent.data[0].toInt()
+                    val syncStatusInt = if (messageEvent.path == StatusFrame.PATH) {
+                        StatusFrame.decode(messageEvent.data).notificationsSyncStatus ?: return
+                    } else {
+                        messageEvent.data[0].toInt()
+                    }
                     val syncStatus = NotificationsSyncStatus.fromIntValue(syncStatusInt)
                         ?: throw IllegalArgumentException("Unknown sync status value: $syncStatusInt")
 
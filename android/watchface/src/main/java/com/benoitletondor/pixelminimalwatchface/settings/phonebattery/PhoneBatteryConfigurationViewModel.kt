@@ -21,6 +21,7 @@ import android.util.Log
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
 import com.benoitletondor.pixelminimalwatchface.Injection
+import com.benoitletondor.pixelminimalwatchface.StatusFrame
 import com.benoitletondor.pixelminimalwatchface.helper.MutableLiveFlow
 import com.benoitletondor.pixelminimalwatchface.helper.await
 import com.benoitletondor.pixelminimalwatchface.helper.findBestCompanionNode
@@ -76,11 +77,15 @@ class PhoneBatteryConfigurationViewModel(
     }
 
     override fun onMessageReceived(messageEvent: MessageEvent) {
-        if (messageEvent.path == DATA_KEY_SYNC_ACTIVATED) {
+        if (messageEvent.path == DATA_KEY_SYNC_ACTIVATED || messageEvent.path == StatusFrame.PATH) {
             try {
                 val currentState = state
                 if (currentState is State.WaitingForPhoneStatusResponse) {
-                    val syncActivated = messageEvent.data[0].toInt() == 1
+                    val syncActivated = if (messageEvent.path == StatusFrame.PATH) {
+                        StatusFrame.decode(messageEvent.data).batterySyncActivated ?: return
+                    } else {
+                        messageEvent.data[0].toInt() == 1
+                    }
 
                     state = State.PhoneStatusResponse(
                         node = currentState.node,
@@ -0,0 +1,152 @@
+/*
+ *   Copyright 2022 Benoit LETONDOR
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package android.support.wearable.complications.rendering;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CustomTextRendererTest {
+    private CustomTextRenderer renderer;
+
+    @Before
+    public void setUp() {
+        renderer = new CustomTextRenderer(7);
+    }
+
+    @Test
+    public void plainTextIsReturnedAsIs() {
+        String text = "12:30";
+
+        assertSame(text, renderer.applySpanWhitelist(text));
+    }
+
+    @Test
+    public void immutableTextWithOnlyAllowedSpansIsReturnedAsIs() {
+        Spanned text = new FakeSpanned("12:30", new StyleSpan(Typeface.BOLD));
+
+        assertSame(text, renderer.applySpanWhitelist(text));
+    }
+
+    @Test
+    public void immutableTextWithDisallowedSpanIsCopied() {
+        Spanned text = new FakeSpanned("12:30", new StyleSpan(Typeface.BOLD), new Object());
+
+        assertNotSame(text, renderer.applySpanWhitelist(text));
+    }
+
+    @Test
+    public void immutableTextIsSanitizedOnceThenCached() {
+        Spanned text = new FakeSpanned("12:30", new Object());
+
+        CharSequence sanitizedText = renderer.applySpanWhitelist(text);
+
+        assertSame(sanitizedText, renderer.applySpanWhitelist(text));
+    }
+
+    @Test
+    public void mutableTextWithOnlyAllowedSpansIsCopied() {
+        Spannable text = new FakeSpannable("12:30", new StyleSpan(Typeface.BOLD));
+
+        assertNotSame(text, renderer.applySpanWhitelist(text));
+    }
+
+    @Test
+    public void mutableTextIsNotCached() {
+        Spannable text = new FakeSpannable("12:30", new StyleSpan(Typeface.BOLD));
+
+        CharSequence sanitizedText = renderer.applySpanWhitelist(text);
+
+        assertNotSame(sanitizedText, renderer.applySpanWhitelist(text));
+    }
+
+    private static class FakeSpanned implements Spanned {
+        private final String text;
+        private final Object[] spans;
+
+        FakeSpanned(String text, Object... spans) {
+            this.text = text;
+            this.spans = spans;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T[] getSpans(int start, int end, Class<T> type) {
+            return (T[]) spans;
+        }
+
+        @Override
+        public int getSpanStart(Object tag) {
+            return 0;
+        }
+
+        @Override
+        public int getSpanEnd(Object tag) {
+            return text.length();
+        }
+
+        @Override
+        public int getSpanFlags(Object tag) {
+            return 0;
+        }
+
+        @Override
+        public int nextSpanTransition(int start, int limit, Class type) {
+            return limit;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static class FakeSpannable extends FakeSpanned implements Spannable {
+        FakeSpannable(String text, Object... spans) {
+            super(text, spans);
+        }
+
+        @Override
+        public void setSpan(Object what, int start, int end, int flags) {
+        }
+
+        @Override
+        public void removeSpan(Object what) {
+        }
+    }
+}